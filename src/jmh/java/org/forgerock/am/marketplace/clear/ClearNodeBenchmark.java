@@ -0,0 +1,126 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks of {@link ClearNode#process} against a local {@link ClearStub}, for each leg of the journey and for
+ * the whole round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClearNodeBenchmark {
+
+    /**
+     * The delay, in milliseconds, of every CLEAR response.
+     */
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    /**
+     * The share of CLEAR requests answered with a 503, up to a failure storm where every request fails.
+     */
+    @Param({"0", "0.5", "1"})
+    public double errorRate;
+
+    private ClearStub stub;
+    private ClearHttpHandler httpHandler;
+    private ClearClient client;
+    private ClearNode node;
+
+    /**
+     * Start the stub and create the node.
+     *
+     * @throws IOException When the stub cannot be started
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stub = ClearStub.start().latency(latencyMillis).errorRate(errorRate);
+        ClearMetrics metrics = ClearJourney.metrics();
+        httpHandler = new ClearHttpHandler();
+        client = new ClearClient(httpHandler, metrics, new ClearWebhookStore());
+        node = ClearJourney.node(ClearJourney.config(stub.url()), client, metrics);
+    }
+
+    /**
+     * Stop the node's client and the stub.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        httpHandler.close();
+        stub.close();
+    }
+
+    /**
+     * The first leg: create a verification session and redirect to CLEAR.
+     *
+     * @return The action of the node
+     */
+    @Benchmark
+    public Action createSession() {
+        return new ClearJourney().start(node);
+    }
+
+    /**
+     * The return leg: check the nonce, retrieve the verification results and route on them.
+     *
+     * @param journey A journey that has completed its first leg
+     * @return The action of the node
+     */
+    @Benchmark
+    public Action retrieveResults(StartedJourney journey) {
+        return journey.journey.resume(node);
+    }
+
+    /**
+     * Both legs of a journey.
+     *
+     * @return The action of the last request
+     */
+    @Benchmark
+    public Action roundTrip() {
+        return new ClearJourney().run(node);
+    }
+
+    /**
+     * A journey that has completed its first leg, set up before each call of {@link #retrieveResults}.
+     */
+    @State(Scope.Thread)
+    public static class StartedJourney {
+
+        private ClearJourney journey;
+
+        /**
+         * Run the first leg of a new journey.
+         *
+         * @param benchmark The benchmark holding the node
+         */
+        @Setup(Level.Invocation)
+        public void start(ClearNodeBenchmark benchmark) {
+            journey = new ClearJourney();
+            journey.start(benchmark.node);
+        }
+    }
+}
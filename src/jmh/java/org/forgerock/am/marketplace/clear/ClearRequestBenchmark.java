@@ -0,0 +1,178 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.header.AuthorizationHeader;
+import org.forgerock.http.header.MalformedHeaderException;
+import org.forgerock.http.header.authorization.BearerToken;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.util.Json;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.RootContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the per-request work of the CLEAR client that does not involve the network: building requests,
+ * parsing responses and issuing nonces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClearRequestBenchmark {
+
+    private static final String BASE_URL = "https://secure.verified.clearme.com";
+    private static final String API_KEY = "api-key";
+    private static final String PROJECT_ID = "project";
+    private static final String REDIRECT_URL = "https://am.example.com/am/XUI/";
+    private static final String SESSION_ID = "5f3b0c1e2d4a6b8c9d0e1f2a";
+
+    private ClearEndpoints.Endpoint endpoint;
+    private ClearRequestTemplate template;
+    private ClearResultsProjection projection;
+    private String nonce;
+    private String returnedNonce;
+    private String resultsBody;
+    private byte[] resultsBytes;
+
+    /**
+     * Prepare the endpoint, template and response bodies.
+     */
+    @Setup
+    public void setUp() {
+        endpoint = ClearEndpoints.of(Collections.singleton(BASE_URL)).select(e -> true);
+        template = ClearRequestTemplate.of(endpoint, API_KEY, PROJECT_ID, REDIRECT_URL);
+        projection = ClearResultsProjection.of(Arrays.asList("/traits/first_name", "/traits/last_name"), "/status");
+        nonce = ClearNonces.generate();
+        returnedNonce = new String(nonce.toCharArray());
+        resultsBody = "{\"id\":\"" + SESSION_ID + "\",\"status\":\"success\",\"project_id\":\"project\","
+                      + "\"traits\":{\"first_name\":\"Ada\",\"last_name\":\"Lovelace\",\"dob\":\"1815-12-10\","
+                      + "\"email\":\"ada@example.com\",\"phone\":\"+15555550100\","
+                      + "\"address\":{\"line1\":\"12 St James's Square\",\"city\":\"London\",\"country\":\"GB\"},"
+                      + "\"document\":{\"type\":\"passport\",\"number\":\"X1234567\","
+                      + "\"issue_date\":\"2020-01-01\"}},\"checks\":[{\"name\":\"liveness\",\"result\":\"pass\"}]}";
+        resultsBytes = resultsBody.getBytes(UTF_8);
+    }
+
+    /**
+     * Build the URI of a verification session.
+     *
+     * @return The URI
+     */
+    @Benchmark
+    public URI sessionUri() {
+        return endpoint.sessionUri(SESSION_ID);
+    }
+
+    /**
+     * Build a create-session request from a cached template.
+     *
+     * @return The request
+     */
+    @Benchmark
+    public Request createSessionRequest() {
+        return template.createSession(nonce);
+    }
+
+    /**
+     * Build a create-session request as every request was built before templates: parse the URI, build the JSON
+     * body, format the authorization header and create the request context.
+     *
+     * @param blackhole Consumes the request context
+     * @return The request
+     * @throws MalformedHeaderException Never, the API key is valid
+     */
+    @Benchmark
+    public Request createSessionRequestUncached(Blackhole blackhole) throws MalformedHeaderException {
+        URI uri = URI.create(BASE_URL + "/v1/verification_sessions/");
+
+        JsonValue parameters = json(object(1));
+        parameters.put("project_id", PROJECT_ID);
+        parameters.put("redirect_url", REDIRECT_URL + "?nonce=" + nonce);
+
+        Request request = new Request().setUri(uri).setMethod("POST");
+        request.getEntity().setJson(parameters);
+        AuthorizationHeader header = new AuthorizationHeader();
+        BearerToken bearerToken = new BearerToken(API_KEY);
+        header.setRawValue(BearerToken.NAME + " " + bearerToken);
+        request.addHeaders(header);
+        request.getHeaders().add("Accept", "*/*");
+        blackhole.consume(new RootContext());
+        return request;
+    }
+
+    /**
+     * Build a verification results request, including its authorization header.
+     *
+     * @return The request
+     */
+    @Benchmark
+    public Request resultsRequest() {
+        return template.getResults(SESSION_ID);
+    }
+
+    /**
+     * Parse a whole verification results body.
+     *
+     * @return The results
+     * @throws IOException Never, the body is valid
+     */
+    @Benchmark
+    public JsonValue parseResults() throws IOException {
+        return json(Json.readJson(resultsBody));
+    }
+
+    /**
+     * Stream a verification results body, keeping only the configured fields.
+     *
+     * @return The projected results
+     * @throws IOException Never, the body is valid
+     */
+    @Benchmark
+    public JsonValue projectResults() throws IOException {
+        return projection.read(new ByteArrayInputStream(resultsBytes));
+    }
+
+    /**
+     * Generate a random nonce.
+     *
+     * @return The nonce
+     */
+    @Benchmark
+    public String generateNonce() {
+        return ClearNonces.generate();
+    }
+
+    /**
+     * Compare the nonce of a return request with the stored nonce.
+     *
+     * @return Whether the nonces match
+     */
+    @Benchmark
+    public boolean matchNonce() {
+        return ClearNonces.matches(nonce, returnedNonce);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Fetches the verification results of a list of session IDs and writes them as NDJSON.
+ * <p>
+ * At most {@code concurrency} requests are in flight and requests are started at most {@code ratePerSecond} times
+ * per second. Each request must complete within {@code timeoutMillis}. Results are written as they complete, one
+ * {@code {"id":..., "results":...}} or {@code {"id":..., "error":...}} line per session, so the results held in
+ * memory are bounded by the concurrency rather than the number of sessions. Every {@value #PROGRESS_INTERVAL}
+ * sessions, and once at the end, a {@code progress} line reports the processed and failed counts and the
+ * checkpoint: the number of leading session IDs that have all been written, failed sessions included. An
+ * interrupted export is resumed by passing that checkpoint back, which skips those session IDs.
+ * </p>
+ */
+final class ClearBulkExport {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClearBulkExport.class);
+    private static final String LOGGER_PREFIX = "[ClearBulkExport]" + ClearPlugin.LOG_APPENDER;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final ClearClient client;
+    private final ClearEndpoints endpoints;
+    private final boolean secure;
+    private final String apiKey;
+    private final ClearResultsProjection projection;
+    private final int concurrency;
+    private final long intervalNanos;
+    private final long timeoutMillis;
+    private final long checkpoint;
+
+    private final BlockingQueue<Completed> completed = new LinkedBlockingQueue<>();
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    private long processed;
+    private long failed;
+    private long nextIndex;
+    private long nextStart;
+
+    /**
+     * Prepare an export.
+     *
+     * @param client        The CLEAR client
+     * @param endpoints     The CLEAR endpoints to call
+     * @param secure        Whether the secure endpoints are called
+     * @param apiKey        The CLEAR API Key
+     * @param projection    The fields to keep from each response, or null to keep the whole body
+     * @param concurrency   The maximum number of requests in flight
+     * @param ratePerSecond The maximum number of requests started per second, zero for no limit
+     * @param timeoutMillis The time, in milliseconds, each request must complete within
+     * @param checkpoint    The number of leading session IDs to skip, as reported by an earlier export
+     */
+    ClearBulkExport(ClearClient client, ClearEndpoints endpoints, boolean secure, String apiKey,
+                    ClearResultsProjection projection, int concurrency, int ratePerSecond, long timeoutMillis,
+                    long checkpoint) {
+        this.client = client;
+        this.endpoints = endpoints;
+        this.secure = secure;
+        this.apiKey = apiKey;
+        this.projection = projection;
+        this.concurrency = Math.max(1, concurrency);
+        this.intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+        this.timeoutMillis = timeoutMillis;
+        this.checkpoint = Math.max(0, checkpoint);
+    }
+
+    /**
+     * Run the export.
+     *
+     * @param sessionIds The verification session IDs
+     * @param output     Where the NDJSON lines are written
+     * @throws IOException          When the output cannot be written
+     * @throws InterruptedException When the export is interrupted
+     */
+    void run(List<String> sessionIds, Writer output) throws IOException, InterruptedException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+            generator.setRootValueSeparator(null);
+            for (String sessionId : sessionIds) {
+                long index = nextIndex++;
+                if (index < checkpoint) {
+                    continue;
+                }
+                while (inFlight.size() >= concurrency) {
+                    write(generator, completed.take());
+                }
+                throttle();
+                inFlight.add(index);
+                client.exportUserVerificationResultsAsync(endpoints, secure, apiKey, sessionId, projection,
+                                                          ClearDeadline.after(timeoutMillis))
+                      .thenOnResultOrException(results -> completed.add(new Completed(index, sessionId, results, null)),
+                                               e -> completed.add(new Completed(index, sessionId, null, e)))
+                      .thenOnRuntimeException(e -> completed.add(new Completed(index, sessionId, null,
+                          new ClearServiceException("Unexpected error: " + e))));
+                Completed done;
+                while ((done = completed.poll()) != null) {
+                    write(generator, done);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                write(generator, completed.take());
+            }
+            writeProgress(generator);
+            logger.info("{}Export completed, processed {} sessions, {} failed", LOGGER_PREFIX, processed, failed);
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        if (intervalNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (nextStart > now) {
+            TimeUnit.NANOSECONDS.sleep(nextStart - now);
+        }
+        nextStart = Math.max(now, nextStart) + intervalNanos;
+    }
+
+    private void write(JsonGenerator generator, Completed done) throws IOException {
+        inFlight.remove(done.index);
+        processed++;
+        generator.writeStartObject();
+        generator.writeStringField("id", done.sessionId);
+        if (done.error == null) {
+            generator.writeFieldName("results");
+            writeValue(generator, done.results.getObject());
+            done.results.clear();
+        }
+        else {
+            failed++;
+            generator.writeStringField("error", done.error.getMessage());
+        }
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        if (processed % PROGRESS_INTERVAL == 0) {
+            writeProgress(generator);
+            logger.info("{}Export processed {} sessions, {} failed", LOGGER_PREFIX, processed, failed);
+        }
+    }
+
+    private void writeProgress(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeObjectFieldStart("progress");
+        generator.writeNumberField("processed", processed);
+        generator.writeNumberField("failed", failed);
+        generator.writeNumberField("checkpoint", inFlight.isEmpty() ? nextIndex : inFlight.first());
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        generator.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        }
+        else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                generator.writeFieldName(entry.getKey());
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        else if (value instanceof List) {
+            generator.writeStartArray();
+            for (Object element : (List<Object>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        }
+        else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Integer || value instanceof Long) {
+            generator.writeNumber(((Number) value).longValue());
+        }
+        else if (value instanceof Number) {
+            generator.writeNumber(value.toString());
+        }
+        else {
+            generator.writeString(value.toString());
+        }
+    }
+
+    private static final class Completed {
+        private final long index;
+        private final String sessionId;
+        private final JsonValue results;
+        private final ClearServiceException error;
+
+        private Completed(long index, String sessionId, JsonValue results, ClearServiceException error) {
+            this.index = index;
+            this.sessionId = sessionId;
+            this.results = results;
+            this.error = error;
+        }
+    }
+}
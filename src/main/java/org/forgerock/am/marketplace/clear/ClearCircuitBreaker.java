@@ -0,0 +1,255 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker and bulkhead guarding a single CLEAR endpoint.
+ * <p>
+ * The breaker opens when the share of failed or slow calls in the last {@code windowSize} calls reaches the
+ * configured threshold. While open, calls fail immediately instead of waiting on a degraded endpoint. Once the
+ * open duration has elapsed a single trial call is let through, which either closes the breaker again or
+ * re-opens it. Each call belongs to the generation of the breaker state it was let through in, and completions of
+ * calls from an earlier generation are ignored, so that only the trial call decides the outcome of the trial.
+ * Rejections by CLEAR with a 4xx status do not count as failures, as they do not indicate that the
+ * endpoint is degraded. Independently of the breaker state, the number of concurrent calls is capped.
+ * </p>
+ */
+final class ClearCircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClearCircuitBreaker.class);
+    private static final String LOGGER_PREFIX = "[ClearCircuitBreaker]" + ClearPlugin.LOG_APPENDER;
+    private static final long NOT_PERMITTED = -1;
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private long generation;
+    private boolean trialInFlight;
+    private boolean[] failures = new boolean[0];
+    private boolean[] slowCalls = new boolean[0];
+    private int recorded;
+    private int next;
+
+    /**
+     * Create a breaker for the named endpoint.
+     *
+     * @param name The endpoint the breaker guards, used in log messages
+     */
+    ClearCircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Run the call if the breaker and the bulkhead allow it, otherwise fail fast.
+     *
+     * @param settings The breaker thresholds
+     * @param call     Issues the CLEAR request
+     * @return A promise of the CLEAR response
+     */
+    Promise<JsonValue, ClearServiceException> call(Settings settings,
+                                                   Supplier<Promise<JsonValue, ClearServiceException>> call) {
+        if (!settings.enabled) {
+            return call.get();
+        }
+        long callGeneration = tryAcquirePermission(settings);
+        if (callGeneration == NOT_PERMITTED) {
+            return newExceptionPromise(new ClearCircuitOpenException("CLEAR circuit breaker is open for " + name));
+        }
+        if (inFlight.incrementAndGet() > settings.maxConcurrentCalls) {
+            inFlight.decrementAndGet();
+            releaseTrial();
+            return newExceptionPromise(new ClearCircuitOpenException("CLEAR concurrent call limit reached for "
+                                                                     + name));
+        }
+
+        long start = System.nanoTime();
+        return call.get()
+                   .thenOnResult(result -> onComplete(settings, callGeneration, false, start))
+                   .thenOnException(e -> onComplete(settings, callGeneration,
+                                                    !(e instanceof ClearClientErrorException), start))
+                   .thenOnRuntimeException(e -> onComplete(settings, callGeneration, true, start));
+    }
+
+    /**
+     * The current breaker state.
+     *
+     * @return The breaker state
+     */
+    synchronized State getState() {
+        return state;
+    }
+
+    private void onComplete(Settings settings, long callGeneration, boolean failed, long start) {
+        inFlight.decrementAndGet();
+        boolean slow = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= settings.slowCallThresholdMillis;
+        record(settings, callGeneration, failed, slow);
+    }
+
+    /**
+     * Let a call through if the breaker state allows it. Every trial call starts a new generation.
+     *
+     * @param settings The breaker thresholds
+     * @return The generation the call belongs to, or {@link #NOT_PERMITTED} when the call must fail fast
+     */
+    private synchronized long tryAcquirePermission(Settings settings) {
+        switch (state) {
+        case OPEN:
+            if (System.currentTimeMillis() - openedAt < settings.openDurationMillis) {
+                return NOT_PERMITTED;
+            }
+            transitionTo(State.HALF_OPEN);
+            trialInFlight = true;
+            return generation;
+        case HALF_OPEN:
+            if (trialInFlight) {
+                return NOT_PERMITTED;
+            }
+            trialInFlight = true;
+            return ++generation;
+        default:
+            return generation;
+        }
+    }
+
+    private synchronized void releaseTrial() {
+        trialInFlight = false;
+    }
+
+    private synchronized void record(Settings settings, long callGeneration, boolean failed, boolean slow) {
+        if (callGeneration != generation) {
+            // Let through before the last state change, e.g. a call from before the breaker opened that completes
+            // while the trial call is in flight
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            if (failed || slow) {
+                open();
+            }
+            else {
+                transitionTo(State.CLOSED);
+                resetWindow(settings.windowSize);
+            }
+            return;
+        }
+        if (failures.length != settings.windowSize) {
+            resetWindow(settings.windowSize);
+        }
+        if (recorded == failures.length) {
+            recorded--;
+        }
+        failures[next] = failed;
+        slowCalls[next] = slow;
+        next = (next + 1) % failures.length;
+        recorded++;
+
+        if (recorded < failures.length) {
+            return;
+        }
+        int failedCount = 0;
+        int slowCount = 0;
+        for (int i = 0; i < failures.length; i++) {
+            failedCount += failures[i] ? 1 : 0;
+            slowCount += slowCalls[i] ? 1 : 0;
+        }
+        int threshold = settings.failureRateThreshold * failures.length;
+        if (failedCount * 100 >= threshold || slowCount * 100 >= threshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transitionTo(State.OPEN);
+    }
+
+    private void resetWindow(int windowSize) {
+        failures = new boolean[Math.max(1, windowSize)];
+        slowCalls = new boolean[failures.length];
+        recorded = 0;
+        next = 0;
+    }
+
+    private void transitionTo(State newState) {
+        if (state != newState) {
+            generation++;
+            logger.warn("{}Circuit breaker for {} changed from {} to {}", LOGGER_PREFIX, name, state, newState);
+            state = newState;
+        }
+    }
+
+    /**
+     * Thresholds applied by a {@link ClearCircuitBreaker}.
+     */
+    static final class Settings {
+
+        /**
+         * Settings that bypass both the breaker and the bulkhead.
+         */
+        static final Settings DISABLED = new Settings(false, 100, Long.MAX_VALUE, 1, 0, Integer.MAX_VALUE);
+
+        private final boolean enabled;
+        private final int failureRateThreshold;
+        private final long slowCallThresholdMillis;
+        private final int windowSize;
+        private final long openDurationMillis;
+        private final int maxConcurrentCalls;
+
+        /**
+         * Create the breaker settings.
+         *
+         * @param enabled                 Whether the breaker and bulkhead are applied
+         * @param failureRateThreshold    The percentage of failed or slow calls that opens the breaker
+         * @param slowCallThresholdMillis The duration, in milliseconds, above which a call counts as slow
+         * @param windowSize              The number of most recent calls the rates are computed over
+         * @param openDurationMillis      How long, in milliseconds, the breaker stays open before a trial call
+         * @param maxConcurrentCalls      The maximum number of concurrent calls to the endpoint
+         */
+        Settings(boolean enabled, int failureRateThreshold, long slowCallThresholdMillis, int windowSize,
+                 long openDurationMillis, int maxConcurrentCalls) {
+            this.enabled = enabled;
+            this.failureRateThreshold = failureRateThreshold;
+            this.slowCallThresholdMillis = slowCallThresholdMillis;
+            this.windowSize = windowSize;
+            this.openDurationMillis = openDurationMillis;
+            this.maxConcurrentCalls = maxConcurrentCalls;
+        }
+
+        /**
+         * Read the breaker settings from the node configuration.
+         *
+         * @param config The CLEAR node configuration
+         * @return The breaker settings
+         */
+        static Settings of(ClearNode.Config config) {
+            return new Settings(
+                config.circuitBreakerToggle(),
+                config.circuitBreakerFailureRate(),
+                config.circuitBreakerSlowCallThreshold(),
+                config.circuitBreakerWindowSize(),
+                TimeUnit.SECONDS.toMillis(config.circuitBreakerOpenDuration()),
+                config.maxConcurrentCalls());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+/**
+ * A CLEAR call was not sent because the circuit breaker of its endpoint is open or its concurrency limit is
+ * reached.
+ */
+public class ClearCircuitOpenException extends ClearServiceException {
+
+    /**
+     * Exception constructor with error message.
+     *
+     * @param message The error message.
+     */
+    public ClearCircuitOpenException(String message) {
+        super(message, null);
+    }
+}
@@ -8,25 +8,40 @@
 
 package org.forgerock.am.marketplace.clear;
 
-import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
 
 import javax.inject.Singleton;
 import javax.inject.Inject;
-import javax.inject.Named;
 
 import java.io.IOException;
-import java.net.URI;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.forgerock.http.header.MalformedHeaderException;
-import org.forgerock.http.header.authorization.BearerToken;
-import org.forgerock.http.header.AuthorizationHeader;
+import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Responses;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.http.Handler;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 
 /**
  * Service to integrate with CLEARs API and UI.
@@ -34,14 +49,64 @@ import org.forgerock.http.Handler;
 @Singleton
 public class ClearClient {
 
+    /**
+     * Default base URL of the CLEAR API and of the standard results endpoint.
+     */
+    static final String DEFAULT_API_URL = "https://verified.clearme.com";
+
+    /**
+     * Default base URL of the secure results endpoint.
+     */
+    static final String DEFAULT_SECURE_API_URL = "https://secure.verified.clearme.com";
+
+    /**
+     * Default URL of CLEAR's hosted verification UI.
+     */
+    static final String DEFAULT_VERIFICATION_UI_URL = "https://verified.clearme.com/verify";
+
+    /**
+     * Default time budget, in milliseconds, of a CLEAR call, including its retries.
+     */
+    static final int DEFAULT_BUDGET_MILLIS = 10000;
+
+    /**
+     * Name of the verification session status field in the CLEAR response.
+     */
+    static final String STATUS = "status";
+
+    private static final int MAX_ENDPOINT_SETS = 64;
+    private static final int MAX_ERROR_BODY_BYTES = 256;
+    private static final int MAX_TEMPLATES = 256;
+    private static final long CACHE_SWEEP_SECONDS = 1;
+    private static final Context ROOT_CONTEXT = new RootContext();
+
     private final Handler handler;
+    private final ClearMetrics metrics;
+    private final ClearWebhookStore webhookStore;
+    private final ClearResultsCache resultsCache = new ClearResultsCache();
+    private final Map<String, ClearCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final Map<Collection<String>, ClearEndpoints> endpoints = new ConcurrentHashMap<>();
+    private final Map<List<Object>, ClearRequestTemplate> templates = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ClearRetryPolicy retryPolicy;
 
     /**
-     * Creates a new instance that will close the underlying HTTP client upon shutdown.
+     * Creates a new instance using the CLEAR HTTP client, which the plugin closes upon shutdown.
      */
     @Inject
-    public ClearClient(@Named("CloseableHttpClientHandler") org.forgerock.http.Handler handler) {
+    public ClearClient(ClearHttpHandler handler, ClearMetrics metrics, ClearWebhookStore webhookStore) {
         this.handler = handler;
+        this.metrics = metrics;
+        this.webhookStore = webhookStore;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "clear-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler.scheduleWithFixedDelay(resultsCache::sweep, CACHE_SWEEP_SECONDS, CACHE_SWEEP_SECONDS,
+                                              TimeUnit.SECONDS);
+        this.retryPolicy = new ClearRetryPolicy(scheduler, metrics);
     }
 
     /**
@@ -52,42 +117,126 @@ public class ClearClient {
      * @param redirectUrl The Redirect URL for after the verification session
      * @param nonce       The Nonce included with the Redirect URL
      * @return Json containing the response from the operation
-     * @throws ClearServiceException When API response != 200
+     * @throws ClearServiceException When API response != 200, or no response arrived within
+     *                               {@value #DEFAULT_BUDGET_MILLIS} milliseconds
+     * @deprecated Blocks the calling thread for the whole CLEAR call and bypasses the circuit breaker and retries,
+     * use {@link #createVerificationSessionAsync(ClearNode.Config, String, String)} instead
      */
+    @Deprecated
     public JsonValue createVerificationSession(
         String apiKey,
         String projectId,
         String redirectUrl,
         String nonce) throws ClearServiceException {
 
-        Request request;
+        return await(createVerificationSessionAsync(apiKey, projectId, redirectUrl, nonce),
+                     "Failed to process client verification");
+    }
 
-        // Create the request url
-        URI uri = URI.create("https://verified.clearme.com/v1/verification_sessions/");
+    /**
+     * Asynchronous variant of {@link #createVerificationSession(String, String, String, String)}. The returned
+     * promise is completed by the HTTP client, so no calling thread is held while the request is in flight. The
+     * request is cancelled when it has not completed within {@value #DEFAULT_BUDGET_MILLIS} milliseconds.
+     *
+     * @param apiKey      The CLEAR API Key
+     * @param projectId   The project_id of the desired CLEAR project
+     * @param redirectUrl The Redirect URL for after the verification session
+     * @param nonce       The Nonce included with the Redirect URL
+     * @return A promise of the Json containing the response from the operation
+     * @deprecated Bypasses the circuit breaker and retries, use
+     * {@link #createVerificationSessionAsync(ClearNode.Config, String, String)} instead
+     */
+    @Deprecated
+    public Promise<JsonValue, ClearServiceException> createVerificationSessionAsync(
+        String apiKey,
+        String projectId,
+        String redirectUrl,
+        String nonce) {
+        return createVerificationSession(endpoints(Collections.singleton(DEFAULT_API_URL)), apiKey, projectId,
+                                         redirectUrl, nonce, ClearCircuitBreaker.Settings.DISABLED,
+                                         ClearRetryPolicy.Settings.DISABLED,
+                                         ClearDeadline.after(DEFAULT_BUDGET_MILLIS));
+    }
 
-        // Create the request body
-        JsonValue parameters = json(object(1));
-        parameters.put("project_id", projectId);
-        parameters.put("redirect_url", redirectUrl + "?nonce=" + nonce);
+    /**
+     * Create a verification session using the endpoints, circuit breaker, retry and other settings of the node
+     * configuration, within its create-session budget. The returned promise is completed by the HTTP client, so
+     * no calling thread is held while the request is in flight.
+     *
+     * @param config The CLEAR node configuration
+     * @param apiKey The CLEAR API Key
+     * @param nonce  The Nonce included with the Redirect URL
+     * @return A promise of the Json containing the response from the operation
+     */
+    public Promise<JsonValue, ClearServiceException> createVerificationSessionAsync(
+        ClearNode.Config config,
+        String apiKey,
+        String nonce) {
+        return createVerificationSessionAsync(config, apiKey, nonce,
+                                              ClearDeadline.after(config.createSessionBudget()));
+    }
 
-        try {
-            request = new Request().setUri(uri).setMethod("POST");
-            request.getEntity().setJson(parameters);
-            addAuthorizationHeader(request, apiKey);
-            request.getHeaders().add("Accept", "*/*");
-            Response response = handler.handle(new RootContext(), request).getOrThrow();
-            if (response.getStatus() == Status.CREATED || response.getStatus() == Status.OK) {
-                return json(response.getEntity().getJson());
-            }
-            else {
-                throw new ClearServiceException("CLEAR API response with error."
-                                                + response.getStatus()
-                                                + "-" + response.getEntity().getString());
-            }
-        }
-        catch (MalformedHeaderException | InterruptedException | IOException e) {
-            throw new ClearServiceException("Failed to process client verification" + e);
-        }
+    /**
+     * Asynchronous variant of {@link #createVerificationSession(String, String, String, String)} using the
+     * endpoints, circuit breaker, retry and other settings of the node configuration. The request is not sent when
+     * it cannot complete before the deadline, and is cancelled when the deadline expires. As creating a session is
+     * not idempotent, it is only retried when CLEAR cannot have processed the failed request.
+     *
+     * @param config   The CLEAR node configuration
+     * @param apiKey   The CLEAR API Key
+     * @param nonce    The Nonce included with the Redirect URL
+     * @param deadline The deadline of the create-session leg
+     * @return A promise of the Json containing the response from the operation
+     */
+    Promise<JsonValue, ClearServiceException> createVerificationSessionAsync(
+        ClearNode.Config config,
+        String apiKey,
+        String nonce,
+        ClearDeadline deadline) {
+        return createVerificationSession(endpoints(config.apiUrls()), apiKey, config.projectId(),
+                                         config.redirectUrl(), nonce, ClearCircuitBreaker.Settings.of(config),
+                                         ClearRetryPolicy.Settings.of(config), deadline);
+    }
+
+    private Promise<JsonValue, ClearServiceException> createVerificationSession(
+        ClearEndpoints candidates,
+        String apiKey,
+        String projectId,
+        String redirectUrl,
+        String nonce,
+        ClearCircuitBreaker.Settings breakerSettings,
+        ClearRetryPolicy.Settings retrySettings,
+        ClearDeadline deadline) {
+        long start = System.nanoTime();
+        return retryPolicy
+            .call(retrySettings, false, deadline, -1, () -> {
+                ClearEndpoints.Endpoint endpoint = candidates.select(e -> isAvailable("POST", e));
+                if (!endpoint.canComplete(deadline)) {
+                    return newExceptionPromise(new ClearTimeoutException(
+                        "Not enough time left to create the CLEAR verification session", null));
+                }
+                long attemptStart = System.nanoTime();
+                return circuitBreaker("POST", endpoint)
+                    .call(breakerSettings,
+                          () -> sendVerificationSession(endpoint, apiKey, projectId, redirectUrl, nonce, deadline))
+                    .thenOnResultOrException(result -> endpoint.recordLatency(attemptStart, false),
+                                             e -> endpoint.recordLatency(attemptStart, true));
+            })
+            .thenAlways(() -> metrics.recordCreateSession(start));
+    }
+
+    private Promise<JsonValue, ClearServiceException> sendVerificationSession(
+        ClearEndpoints.Endpoint endpoint,
+        String apiKey,
+        String projectId,
+        String redirectUrl,
+        String nonce,
+        ClearDeadline deadline) {
+
+        Request request = template(endpoint, apiKey, projectId, redirectUrl).createSession(nonce);
+        return send(request, deadline)
+                      .then(response -> readResponse(response, null, "Failed to process client verification"),
+                            Responses.noopExceptionFunction());
     }
 
     /**
@@ -97,51 +246,351 @@ public class ClearClient {
      * @param apiKey                The CLEAR API Key
      * @param verificationSessionId The CLEAR Verification Session ID
      * @return Json containing the response from the operation
-     * @throws ClearServiceException When API response != 200
+     * @throws ClearServiceException When API response != 200, or no response arrived within
+     *                               {@value #DEFAULT_BUDGET_MILLIS} milliseconds
+     * @deprecated Blocks the calling thread for the whole CLEAR call and bypasses the circuit breaker and retries,
+     * use {@link #getUserVerificationResultsAsync(ClearNode.Config, String, String)} instead
      */
+    @Deprecated
     public JsonValue getUserVerificationResults(
         String verificationResultsEndpoint,
         String apiKey,
         String verificationSessionId) throws ClearServiceException {
 
+        return await(getUserVerificationResultsAsync(verificationResultsEndpoint, apiKey, verificationSessionId),
+                     "Failed to process client authorization");
+    }
+
+    /**
+     * Asynchronous variant of {@link #getUserVerificationResults(String, String, String)}. The returned
+     * promise is completed by the HTTP client, so no calling thread is held while the request is in flight. The
+     * request is cancelled when it has not completed within {@value #DEFAULT_BUDGET_MILLIS} milliseconds.
+     *
+     * @param verificationResultsEndpoint The base URL of the secure or standard results endpoint
+     * @param apiKey                      The CLEAR API Key
+     * @param verificationSessionId       The CLEAR Verification Session ID
+     * @return A promise of the Json containing the response from the operation
+     * @deprecated Bypasses the circuit breaker, retries and results cache, use
+     * {@link #getUserVerificationResultsAsync(ClearNode.Config, String, String)} instead
+     */
+    @Deprecated
+    public Promise<JsonValue, ClearServiceException> getUserVerificationResultsAsync(
+        String verificationResultsEndpoint,
+        String apiKey,
+        String verificationSessionId) {
+        ClearEndpoints candidates;
+        try {
+            candidates = endpoints(Collections.singleton(verificationResultsEndpoint));
+        }
+        catch (IllegalArgumentException e) {
+            return newExceptionPromise(new ClearServiceException("Failed to process client authorization" + e));
+        }
+        return fetchUserVerificationResults(candidates, DEFAULT_SECURE_API_URL.equals(verificationResultsEndpoint),
+                                            apiKey, verificationSessionId, null, ClearCircuitBreaker.Settings.DISABLED,
+                                            ClearRetryPolicy.Settings.DISABLED,
+                                            ClearDeadline.after(DEFAULT_BUDGET_MILLIS));
+    }
+
+    /**
+     * Retrieve the verification results using the endpoints, projection, cache, circuit breaker and retry
+     * settings of the node configuration, within its results budget. The returned promise is completed by the
+     * HTTP client, so no calling thread is held while the request is in flight.
+     *
+     * @param config                The CLEAR node configuration
+     * @param apiKey                The CLEAR API Key
+     * @param verificationSessionId The CLEAR Verification Session ID
+     * @return A promise of the Json containing the response from the operation
+     */
+    public Promise<JsonValue, ClearServiceException> getUserVerificationResultsAsync(
+        ClearNode.Config config,
+        String apiKey,
+        String verificationSessionId) {
+        return getUserVerificationResultsAsync(config, apiKey, verificationSessionId,
+                                               ClearDeadline.after(config.resultsBudget()));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getUserVerificationResults(String, String, String)} using the endpoints,
+     * projection, cache, circuit breaker and retry settings of the node configuration. Results are held in a
+     * short-lived cache and concurrent lookups for the same session and endpoint are coalesced into a single
+     * request. Results of sessions that are still pending are not cached, so that polling observes the session
+     * progress. When enabled, results already pushed by CLEAR's webhook are used without calling CLEAR. When the
+     * results are not cached, the request is not sent when it cannot complete before the deadline, and is cancelled
+     * when the deadline expires. A cached request is shared, so it is left to complete and callers bound their own
+     * wait.
+     *
+     * @param config                The CLEAR node configuration
+     * @param apiKey                The CLEAR API Key
+     * @param verificationSessionId The CLEAR Verification Session ID
+     * @param deadline              The deadline of the results leg
+     * @return A promise of the Json containing the response from the operation
+     */
+    Promise<JsonValue, ClearServiceException> getUserVerificationResultsAsync(
+        ClearNode.Config config,
+        String apiKey,
+        String verificationSessionId,
+        ClearDeadline deadline) {
+        boolean secure = config.secureEndpointToggle();
+        ClearEndpoints candidates = endpoints(secure ? config.secureApiUrls() : config.apiUrls());
+        // Keep the status and every field an outcome rule reads, whatever fields were selected
+        String[] ruleFields = ClearOutcomeRules.of(config.outcomeRules()).pointers();
+        String[] required = Arrays.copyOf(ruleFields, ruleFields.length + 1);
+        required[ruleFields.length] = "/" + STATUS;
+        ClearResultsProjection projection = ClearResultsProjection.of(config.resultFields(), required);
+        Set<String> pendingStatuses = config.pendingStatuses();
+
+        if (config.webhookResultsToggle()) {
+            JsonValue pushed = webhookStore.take(verificationSessionId);
+            if (pushed != null) {
+                if (projection == null) {
+                    return newResultPromise(pushed);
+                }
+                JsonValue projected = projection.apply(pushed);
+                pushed.clear();
+                return newResultPromise(projected);
+            }
+        }
+        ClearCircuitBreaker.Settings breakerSettings = ClearCircuitBreaker.Settings.of(config);
+        ClearRetryPolicy.Settings retrySettings = ClearRetryPolicy.Settings.of(config);
+
+        // A coalesced request is shared by callers with different deadlines, so it is not bound to the deadline of
+        // the caller that happens to issue it. Each caller only bounds its own wait for the shared results.
+        long ttlMillis = TimeUnit.SECONDS.toMillis(config.resultsCacheTtl());
+        ClearDeadline loadDeadline = ttlMillis > 0 && config.resultsCacheSize() > 0 ? ClearDeadline.NONE : deadline;
+        // The API key is part of the key so that results are only shared between callers CLEAR authorized alike
+        String cacheKey = candidates.key() + "|" + apiKey + "|" + verificationSessionId
+                          + (projection == null ? "" : "|" + projection.key());
+        return resultsCache.get(cacheKey, ttlMillis, config.resultsCacheSize(),
+                                results -> !pendingStatuses.contains(results.get(STATUS).asString()),
+                                () -> fetchUserVerificationResults(candidates, secure, apiKey,
+                                                                   verificationSessionId, projection,
+                                                                   breakerSettings, retrySettings,
+                                                                   loadDeadline));
+    }
+
+    /**
+     * Retrieve verification results for a bulk export. Exports bypass the results cache and bound their own
+     * concurrency, so no circuit breaker is applied. The request is not sent when it cannot complete before the
+     * deadline, and is cancelled when the deadline expires.
+     *
+     * @param candidates            The CLEAR endpoints to call
+     * @param secure                Whether the secure endpoints are called
+     * @param apiKey                The CLEAR API Key
+     * @param verificationSessionId The CLEAR Verification Session ID
+     * @param projection            The fields to keep from the response, or null to keep the whole body
+     * @param deadline              The deadline of the request
+     * @return A promise of the Json containing the response from the operation
+     */
+    Promise<JsonValue, ClearServiceException> exportUserVerificationResultsAsync(
+        ClearEndpoints candidates,
+        boolean secure,
+        String apiKey,
+        String verificationSessionId,
+        ClearResultsProjection projection,
+        ClearDeadline deadline) {
+        return fetchUserVerificationResults(candidates, secure, apiKey, verificationSessionId, projection,
+                                            ClearCircuitBreaker.Settings.DISABLED,
+                                            ClearRetryPolicy.Settings.DISABLED, deadline);
+    }
+
+    private Promise<JsonValue, ClearServiceException> fetchUserVerificationResults(
+        ClearEndpoints candidates,
+        boolean secure,
+        String apiKey,
+        String verificationSessionId,
+        ClearResultsProjection projection,
+        ClearCircuitBreaker.Settings breakerSettings,
+        ClearRetryPolicy.Settings retrySettings,
+        ClearDeadline deadline) {
+        long start = System.nanoTime();
+        long hedgeDelay = retrySettings.isHedging() ? metrics.resultsP95Millis(secure) : -1;
+        return retryPolicy
+            .call(retrySettings, true, deadline, hedgeDelay, () -> {
+                ClearEndpoints.Endpoint endpoint = candidates.select(e -> isAvailable("GET", e));
+                if (!endpoint.canComplete(deadline)) {
+                    return newExceptionPromise(new ClearTimeoutException(
+                        "Not enough time left to retrieve the CLEAR verification results", null));
+                }
+                long attemptStart = System.nanoTime();
+                return circuitBreaker("GET", endpoint)
+                    .call(breakerSettings,
+                          () -> sendUserVerificationResults(endpoint, apiKey, verificationSessionId, projection,
+                                                            deadline))
+                    .thenOnResultOrException(result -> endpoint.recordLatency(attemptStart, false),
+                                             e -> endpoint.recordLatency(attemptStart, true));
+            })
+            .thenAlways(() -> metrics.recordResults(secure, start));
+    }
+
+    private Promise<JsonValue, ClearServiceException> sendUserVerificationResults(
+        ClearEndpoints.Endpoint endpoint,
+        String apiKey,
+        String verificationSessionId,
+        ClearResultsProjection projection,
+        ClearDeadline deadline) {
+
         Request request;
 
-        // Create the request url
-        URI uri = URI.create(
-            verificationResultsEndpoint +
-            "/v1/verification_sessions/" +
-            verificationSessionId);
+        try {
+            request = template(endpoint, apiKey, null, null).getResults(verificationSessionId);
+        }
+        catch (IllegalArgumentException e) {
+            return newExceptionPromise(new ClearServiceException("Failed to process client authorization" + e));
+        }
+        return send(request, deadline)
+                      .then(response -> readResponse(response, projection,
+                                                     "Failed to process client authorization"),
+                            Responses.noopExceptionFunction());
+    }
 
+    /**
+     * Send the request, cancelling it if it is still in flight when the deadline expires.
+     */
+    private Promise<Response, NeverThrowsException> send(Request request, ClearDeadline deadline) {
+        Promise<Response, NeverThrowsException> response = handler.handle(ROOT_CONTEXT, request);
+        if (!deadline.isUnbounded() && !response.isDone()) {
+            ScheduledFuture<?> cancellation = scheduler.schedule(() -> response.cancel(true),
+                                                                 deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            response.thenAlways(() -> cancellation.cancel(false));
+        }
+        return response;
+    }
+
+    /**
+     * Wait for a CLEAR call of the deprecated blocking methods, which cancel their request at their deadline.
+     */
+    private static JsonValue await(Promise<JsonValue, ClearServiceException> promise, String failure)
+        throws ClearServiceException {
+        try {
+            return promise.getOrThrow(DEFAULT_BUDGET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | CancellationException e) {
+            promise.cancel(true);
+            throw new ClearTimeoutException("CLEAR API call did not complete within its time budget", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClearServiceException(failure + e);
+        }
+    }
+
+    /**
+     * Stop the scheduler of deadlines, retries and hedges.
+     */
+    void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Return the parsed endpoints for the configured base URLs, parsing them on first use.
+     *
+     * @param urls The configured base URLs
+     * @return The parsed endpoints
+     * @throws IllegalArgumentException When a URL is not an absolute http or https URL
+     */
+    ClearEndpoints endpoints(Collection<String> urls) {
+        ClearEndpoints parsed = endpoints.get(urls);
+        if (parsed == null) {
+            if (endpoints.size() >= MAX_ENDPOINT_SETS) {
+                endpoints.clear();
+            }
+            parsed = endpoints.computeIfAbsent(urls, ClearEndpoints::of);
+        }
+        return parsed;
+    }
+
+    private boolean isAvailable(String method, ClearEndpoints.Endpoint endpoint) {
+        ClearCircuitBreaker breaker = circuitBreakers.get(method + " " + endpoint.sessionsUri());
+        return breaker == null || breaker.getState() != ClearCircuitBreaker.State.OPEN;
+    }
+
+    private ClearCircuitBreaker circuitBreaker(String method, ClearEndpoints.Endpoint endpoint) {
+        return circuitBreakers.computeIfAbsent(method + " " + endpoint.sessionsUri(), ClearCircuitBreaker::new);
+    }
+
+    /**
+     * Read the JSON body of a CLEAR response, releasing the underlying connection once done.
+     *
+     * @param response     The CLEAR API response
+     * @param projection   The fields to keep from the response, or null to keep the whole body
+     * @param errorMessage The message prefix used when the body cannot be read
+     * @return Json containing the response from the operation
+     * @throws ClearTimeoutException When the HTTP client timed out
+     * @throws ClearHttpException    When API response != 200
+     * @throws ClearParseException   When the response body cannot be read
+     */
+    private JsonValue readResponse(Response response, ClearResultsProjection projection, String errorMessage)
+        throws ClearServiceException {
+        metrics.recordStatus(response.getStatus());
         try {
-            request = new Request().setUri(uri).setMethod("GET");
-            addAuthorizationHeader(request, apiKey);
-            request.getHeaders().add("Accept", "*/*");
-            Response response = handler.handle(new RootContext(), request).getOrThrow();
             if (response.getStatus() == Status.CREATED || response.getStatus() == Status.OK) {
+                if (projection != null) {
+                    return projection.read(response.getEntity().newDecodedContentInputStream());
+                }
                 return json(response.getEntity().getJson());
             }
+            else if (response.getCause() instanceof SocketTimeoutException) {
+                throw new ClearTimeoutException("CLEAR API call timed out", response.getCause());
+            }
             else {
-                throw new ClearServiceException("CLEAR API response with error."
-                                                + response.getStatus()
-                                                + "-" + response.getEntity().getString());
+                throw ClearHttpException.of(response.getStatus(),
+                                            "CLEAR API response with error."
+                                            + response.getStatus()
+                                            + "-" + readErrorBody(response),
+                                            response.getCause());
+            }
+        }
+        catch (IOException e) {
+            throw new ClearParseException(errorMessage + e, e);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Read the start of an error response body, so that large error pages are not copied into messages and logs.
+     */
+    private static String readErrorBody(Response response) {
+        byte[] buffer = new byte[MAX_ERROR_BODY_BYTES];
+        try (InputStream body = response.getEntity().newDecodedContentInputStream()) {
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = body.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
             }
+            String text = new String(buffer, 0, length, StandardCharsets.UTF_8);
+            return body.read() < 0 ? text : text + "...";
         }
-        catch (MalformedHeaderException | InterruptedException | IOException e) {
-            throw new ClearServiceException("Failed to process client authorization" + e);
+        catch (IOException e) {
+            return "";
         }
     }
 
     /**
-     * Add the Authorization header to the request.
+     * Return the request template for the API key and endpoint, creating it on first use. Templates are keyed by
+     * every input they are computed from, so a changed API key or node configuration uses a new template and the
+     * stale one is dropped with the rest of the cache once it is full.
      *
-     * @param request     The request to add the header
-     * @param accessToken The accessToken to add the header
-     * @throws MalformedHeaderException When failed to add the header
-     */
-    private void addAuthorizationHeader(Request request, String accessToken) throws MalformedHeaderException {
-        AuthorizationHeader header = new AuthorizationHeader();
-        BearerToken bearerToken = new BearerToken(accessToken);
-        header.setRawValue(BearerToken.NAME + " " + bearerToken);
-        request.addHeaders(header);
+     * @param endpoint    The CLEAR endpoint
+     * @param apiKey      The CLEAR API Key
+     * @param projectId   The CLEAR Project ID, or null for a template of verification results requests
+     * @param redirectUrl The Redirect URL, or null for a template of verification results requests
+     * @return The request template
+     */
+    private ClearRequestTemplate template(ClearEndpoints.Endpoint endpoint, String apiKey, String projectId,
+                                          String redirectUrl) {
+        List<Object> key = Arrays.asList(endpoint, apiKey, projectId, redirectUrl);
+        ClearRequestTemplate template = templates.get(key);
+        if (template == null) {
+            if (templates.size() >= MAX_TEMPLATES) {
+                templates.clear();
+            }
+            template = templates.computeIfAbsent(key, k -> projectId == null
+                                                           ? ClearRequestTemplate.of(endpoint, apiKey)
+                                                           : ClearRequestTemplate.of(endpoint, apiKey, projectId,
+                                                                                     redirectUrl));
+        }
+        return template;
     }
 }
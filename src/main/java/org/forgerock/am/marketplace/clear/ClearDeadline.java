@@ -0,0 +1,61 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a leg of the CLEAR node must have its CLEAR response.
+ */
+final class ClearDeadline {
+
+    /**
+     * A deadline that never expires.
+     */
+    static final ClearDeadline NONE = new ClearDeadline(0, true);
+
+    private final long expiresAtNanos;
+    private final boolean unbounded;
+
+    private ClearDeadline(long expiresAtNanos, boolean unbounded) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.unbounded = unbounded;
+    }
+
+    /**
+     * Create a deadline that expires after the given budget.
+     *
+     * @param budgetMillis The budget in milliseconds
+     * @return The deadline
+     */
+    static ClearDeadline after(long budgetMillis) {
+        return new ClearDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis), false);
+    }
+
+    /**
+     * Whether the deadline never expires.
+     *
+     * @return True for {@link #NONE}
+     */
+    boolean isUnbounded() {
+        return unbounded;
+    }
+
+    /**
+     * The time left before the deadline expires.
+     *
+     * @return The remaining time in milliseconds, zero once expired, or {@link Long#MAX_VALUE} when unbounded
+     */
+    long remainingMillis() {
+        if (unbounded) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+}
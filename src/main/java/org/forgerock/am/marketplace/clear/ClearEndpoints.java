@@ -0,0 +1,276 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * The candidate base URLs of a CLEAR API, parsed and validated once.
+ * <p>
+ * When several candidates are configured, each call picks one at random, weighted by the inverse of its recent
+ * latency. Candidates that are currently unavailable, for example because their circuit breaker is open, are
+ * skipped. A candidate that has not been called yet is preferred so that its latency gets measured.
+ * </p>
+ * <p>
+ * Separately, each candidate tracks the median duration of its recent successful calls, which callers use to skip
+ * a call that cannot complete in the time they have left.
+ * </p>
+ */
+final class ClearEndpoints {
+
+    private static final String VERIFICATION_SESSIONS_PATH = "/v1/verification_sessions/";
+    private static final int SAMPLES = 16;
+    private static final int MIN_SAMPLES = 8;
+    private static final long MAX_FAILURE_PENALTY_MICROS = TimeUnit.SECONDS.toMicros(1);
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final List<Endpoint> endpoints;
+    private final String key;
+
+    private ClearEndpoints(Collection<String> urls, LongSupplier nanoClock) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String url : urls) {
+            sorted.add(parse(url).toString());
+        }
+        if (sorted.isEmpty()) {
+            throw new IllegalArgumentException("At least one CLEAR API URL is required");
+        }
+        List<Endpoint> parsed = new ArrayList<>(sorted.size());
+        for (String url : sorted) {
+            parsed.add(new Endpoint(URI.create(url), nanoClock));
+        }
+        this.endpoints = Collections.unmodifiableList(parsed);
+        this.key = String.join(",", sorted);
+    }
+
+    /**
+     * Parse and validate the candidate base URLs.
+     *
+     * @param urls The base URLs, e.g. {@code https://verified.clearme.com}
+     * @return The parsed endpoints
+     * @throws IllegalArgumentException When a URL is not an absolute http or https URL
+     */
+    static ClearEndpoints of(Collection<String> urls) {
+        return of(urls, System::nanoTime);
+    }
+
+    /**
+     * Parse and validate the candidate base URLs, timing calls with the given clock.
+     *
+     * @param urls      The base URLs, e.g. {@code https://verified.clearme.com}
+     * @param nanoClock The source of {@link System#nanoTime()} readings
+     * @return The parsed endpoints
+     * @throws IllegalArgumentException When a URL is not an absolute http or https URL
+     */
+    static ClearEndpoints of(Collection<String> urls, LongSupplier nanoClock) {
+        return new ClearEndpoints(urls, nanoClock);
+    }
+
+    /**
+     * Parse and validate a single base URL, removing any trailing slash.
+     *
+     * @param url The base URL
+     * @return The normalised base URI
+     * @throws IllegalArgumentException When the URL is not an absolute http or https URL
+     */
+    static URI parse(String url) {
+        URI uri = URI.create(url.trim());
+        if (!("https".equalsIgnoreCase(uri.getScheme()) || "http".equalsIgnoreCase(uri.getScheme()))
+            || uri.getHost() == null) {
+            throw new IllegalArgumentException("Not an absolute http(s) URL: " + url);
+        }
+        String normalised = uri.toString();
+        while (normalised.endsWith("/")) {
+            normalised = normalised.substring(0, normalised.length() - 1);
+        }
+        return URI.create(normalised);
+    }
+
+    /**
+     * A stable representation of the candidates, suitable for use in cache keys.
+     *
+     * @return The sorted, comma separated base URLs
+     */
+    String key() {
+        return key;
+    }
+
+    /**
+     * Pick the endpoint to call.
+     *
+     * @param available Whether an endpoint can currently be called
+     * @return The selected endpoint, or the first candidate when none is available
+     */
+    Endpoint select(Predicate<Endpoint> available) {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        double[] weights = new double[endpoints.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            Endpoint endpoint = endpoints.get(i);
+            if (!available.test(endpoint)) {
+                continue;
+            }
+            long latency = endpoint.latencyMicros.get();
+            if (latency == 0) {
+                return endpoint;
+            }
+            weights[i] = 1d / latency;
+            total += weights[i];
+        }
+        if (total == 0) {
+            return endpoints.get(0);
+        }
+        double pick = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) {
+            pick -= weights[i];
+            if (weights[i] > 0 && pick < 0) {
+                return endpoints.get(i);
+            }
+        }
+        return endpoints.get(endpoints.size() - 1);
+    }
+
+    /**
+     * A single CLEAR base URL and its recent latency.
+     */
+    static final class Endpoint {
+
+        private final URI sessionsUri;
+        private final String sessionsUrl;
+        private final LongSupplier nanoClock;
+        private final AtomicLong latencyMicros = new AtomicLong();
+        private final AtomicLongArray successMicros = new AtomicLongArray(SAMPLES);
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong lastCallNanos;
+        private volatile long medianMicros;
+
+        private Endpoint(URI baseUri, LongSupplier nanoClock) {
+            this.sessionsUrl = baseUri + VERIFICATION_SESSIONS_PATH;
+            this.sessionsUri = URI.create(sessionsUrl);
+            this.nanoClock = nanoClock;
+            this.lastCallNanos = new AtomicLong(nanoClock.getAsLong());
+        }
+
+        /**
+         * The {@code /v1/verification_sessions/} collection URI.
+         *
+         * @return The verification sessions URI
+         */
+        URI sessionsUri() {
+            return sessionsUri;
+        }
+
+        /**
+         * The URI of a single verification session.
+         *
+         * @param verificationSessionId The CLEAR Verification Session ID
+         * @return The verification session URI
+         */
+        URI sessionUri(String verificationSessionId) {
+            return URI.create(sessionsUrl + verificationSessionId);
+        }
+
+        /**
+         * The median duration of the recent successful calls to the endpoint. Failures are not included, so a
+         * failing endpoint is never assumed to be slow.
+         *
+         * @return The median in milliseconds, zero until enough successful calls have been measured
+         */
+        long expectedLatencyMillis() {
+            return TimeUnit.MICROSECONDS.toMillis(medianMicros);
+        }
+
+        /**
+         * Fold the duration of a completed call into the latency estimates. Failed calls count up to one second
+         * more than they took, so that a failing candidate loses weight even when it fails quickly, but only the
+         * duration of successful calls is used for {@link #expectedLatencyMillis()}.
+         *
+         * @param startNanos The {@link System#nanoTime()} at which the call started
+         * @param failed     Whether the call failed
+         */
+        void recordLatency(long startNanos, boolean failed) {
+            long now = nanoClock.getAsLong();
+            lastCallNanos.set(now);
+            long sample = Math.max(1, TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+            long weighted = failed ? sample + Math.min(sample, MAX_FAILURE_PENALTY_MICROS) : sample;
+            latencyMicros.updateAndGet(current -> current == 0 ? sample : current + (weighted - current) / 8);
+            if (!failed) {
+                long count = successes.getAndIncrement();
+                successMicros.set((int) (count % SAMPLES), sample);
+                if (count + 1 >= MIN_SAMPLES) {
+                    medianMicros = median((int) Math.min(count + 1, SAMPLES));
+                }
+            }
+        }
+
+        /**
+         * Whether a call can be expected to complete before the deadline, based on the median duration of the
+         * recent successful calls. An endpoint that has not been called for a while is let through as a probe, so
+         * that its latency estimate can recover. Other calls that are not expected to complete are recorded as
+         * skipped.
+         *
+         * @param deadline The deadline of the call
+         * @return True when the call should be made
+         */
+        boolean canComplete(ClearDeadline deadline) {
+            long remaining = deadline.remainingMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (remaining > expectedLatencyMillis() || tryProbe()) {
+                return true;
+            }
+            recordSkipped();
+            return false;
+        }
+
+        /**
+         * Record that a call was skipped because the endpoint was not expected to complete in time. Skipped calls
+         * decay the selection weight penalty, so that an endpoint is not avoided forever on old measurements.
+         */
+        private void recordSkipped() {
+            latencyMicros.updateAndGet(current -> current - current / 8);
+        }
+
+        /**
+         * Whether a call should be let through whatever its expected latency, because the endpoint has not been
+         * called for a while. At most one call per probe interval is let through.
+         *
+         * @return True when the caller should make the call as a probe
+         */
+        private boolean tryProbe() {
+            long now = nanoClock.getAsLong();
+            long last = lastCallNanos.get();
+            return now - last >= PROBE_INTERVAL_NANOS && lastCallNanos.compareAndSet(last, now);
+        }
+
+        private long median(int count) {
+            long[] samples = new long[count];
+            for (int i = 0; i < count; i++) {
+                samples[i] = successMicros.get(i);
+            }
+            Arrays.sort(samples);
+            return samples[count / 2];
+        }
+    }
+}
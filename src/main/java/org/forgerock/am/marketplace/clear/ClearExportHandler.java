@@ -0,0 +1,315 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.header.ContentLengthHeader;
+import org.forgerock.http.protocol.Cookie;
+import org.forgerock.http.protocol.Form;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.core.realms.RealmLookupException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+import com.iplanet.dpro.session.service.SessionService;
+import com.iplanet.sso.SSOException;
+import com.iplanet.sso.SSOToken;
+import com.iplanet.sso.SSOTokenManager;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdUtils;
+
+/**
+ * Bulk export of CLEAR verification results for audit and reconciliation, registered at {@code /clear/export}.
+ * <p>
+ * The request is a {@code POST} whose body lists one verification session ID per line, at most
+ * {@value #MAX_BODY_SIZE_PROPERTY} bytes. The body is read in full before the export starts. The request must carry
+ * the SSO token of an AM administrator in the AM cookie or the header of the same name. The CLEAR API key is never
+ * taken from the caller; it is read from the secrets mapped to the {@value #SECRET_LABEL_PROPERTY} label in the
+ * realm's secret stores. Likewise the CLEAR endpoints are read from {@value #API_URLS_PROPERTY} and
+ * {@value #SECURE_API_URLS_PROPERTY}, and each request must complete within {@value #REQUEST_TIMEOUT_PROPERTY}
+ * milliseconds. The response streams the results as NDJSON as described in {@link ClearBulkExport}. The following
+ * query parameters are supported:
+ * </p>
+ * <ul>
+ *     <li>{@code realm} - the realm whose secret stores hold the CLEAR API key, the root realm by default</li>
+ *     <li>{@code endpoint} - {@code secure} (default) or {@code standard}</li>
+ *     <li>{@code fields} - comma separated JSON pointers of the fields to keep</li>
+ *     <li>{@code concurrency} - the maximum number of requests in flight, capped by
+ *     {@value #MAX_CONCURRENCY_PROPERTY}</li>
+ *     <li>{@code rate} - the maximum number of requests started per second</li>
+ *     <li>{@code checkpoint} - the checkpoint reported by an interrupted export, to resume it</li>
+ * </ul>
+ * <p>
+ * At most {@value #MAX_EXPORTS_PROPERTY} exports run at a time; further requests are rejected.
+ * </p>
+ */
+@Singleton
+public class ClearExportHandler implements Handler, Closeable {
+
+    static final String MAX_CONCURRENCY_PROPERTY = "org.forgerock.am.marketplace.clear.export.maxConcurrency";
+    static final String MAX_EXPORTS_PROPERTY = "org.forgerock.am.marketplace.clear.export.maxExports";
+    static final String SECRET_LABEL_PROPERTY = "org.forgerock.am.marketplace.clear.export.secretLabel";
+    static final String API_URLS_PROPERTY = "org.forgerock.am.marketplace.clear.export.apiUrls";
+    static final String SECURE_API_URLS_PROPERTY = "org.forgerock.am.marketplace.clear.export.secureApiUrls";
+    static final String REQUEST_TIMEOUT_PROPERTY = "org.forgerock.am.marketplace.clear.export.requestTimeout";
+    static final String MAX_BODY_SIZE_PROPERTY = "org.forgerock.am.marketplace.clear.export.maxBodySize";
+
+    private static final String DEFAULT_SECRET_LABEL = "am.authentication.nodes.clear.apikey";
+    private static final String COOKIE_NAME_PROPERTY = "com.iplanet.am.cookie.name";
+    private static final String DEFAULT_COOKIE_NAME = "iPlanetDirectoryPro";
+
+    private static final Logger logger = LoggerFactory.getLogger(ClearExportHandler.class);
+    private static final String LOGGER_PREFIX = "[ClearExportHandler]" + ClearPlugin.LOG_APPENDER;
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final ClearClient client;
+    private final ClearSecrets secrets;
+    private final SessionService sessionService;
+    private final Semaphore exports;
+    private final ExecutorService executor;
+
+    /**
+     * Creates the export handler.
+     *
+     * @param client The CLEAR client
+     * @param secrets The CLEAR secrets
+     * @param sessionService The session service, to check the caller is an administrator
+     */
+    @Inject
+    public ClearExportHandler(ClearClient client, ClearSecrets secrets, SessionService sessionService) {
+        this.client = client;
+        this.secrets = secrets;
+        this.sessionService = sessionService;
+        int maxExports = Math.max(1, SystemProperties.getAsInt(MAX_EXPORTS_PROPERTY, 2));
+        this.exports = new Semaphore(maxExports);
+        this.executor = Executors.newFixedThreadPool(maxExports, runnable -> {
+            Thread thread = new Thread(runnable, "clear-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+        if (!"POST".equals(request.getMethod())) {
+            return newResultPromise(new Response(Status.METHOD_NOT_ALLOWED));
+        }
+        if (!isAdministrator(request)) {
+            return newResultPromise(new Response(Status.UNAUTHORIZED));
+        }
+
+        Form query = request.getQueryParams();
+        ClearResultsProjection projection;
+        int concurrency;
+        int rate;
+        long checkpoint;
+        Realm realm;
+        try {
+            String fields = query.getFirst("fields");
+            int maxConcurrency = SystemProperties.getAsInt(MAX_CONCURRENCY_PROPERTY, 16);
+            projection = fields == null ? null : ClearResultsProjection.of(Arrays.asList(fields.split(",")));
+            concurrency = Math.min(intParameter(query, "concurrency", 4), maxConcurrency);
+            rate = intParameter(query, "rate", 0);
+            checkpoint = intParameter(query, "checkpoint", 0);
+            String realmPath = query.getFirst("realm");
+            realm = realmPath == null ? Realm.root() : Realm.of(realmPath);
+        }
+        catch (NumberFormatException | RealmLookupException e) {
+            return newResultPromise(new Response(Status.BAD_REQUEST));
+        }
+        boolean secure = !"standard".equals(query.getFirst("endpoint"));
+        ClearEndpoints endpoints;
+        try {
+            endpoints = client.endpoints(secure
+                                         ? urls(SECURE_API_URLS_PROPERTY, ClearClient.DEFAULT_SECURE_API_URL)
+                                         : urls(API_URLS_PROPERTY, ClearClient.DEFAULT_API_URL));
+        }
+        catch (IllegalArgumentException e) {
+            logger.warn("{}Export disabled: {}", LOGGER_PREFIX, e.getMessage());
+            return newResultPromise(new Response(Status.SERVICE_UNAVAILABLE));
+        }
+        long timeoutMillis = SystemProperties.getAsInt(REQUEST_TIMEOUT_PROPERTY, 10000);
+
+        String label = SystemProperties.get(SECRET_LABEL_PROPERTY, DEFAULT_SECRET_LABEL);
+        return secrets.get(realm, label)
+                      .then(keys -> start(request, new ClearBulkExport(client, endpoints, secure, keys.active(),
+                                                                       projection, concurrency, rate, timeoutMillis,
+                                                                       checkpoint)),
+                            e -> {
+                                logger.warn("{}Export disabled: {}", LOGGER_PREFIX, e.getMessage());
+                                return new Response(Status.SERVICE_UNAVAILABLE);
+                            });
+    }
+
+    private Response start(Request request, ClearBulkExport export) {
+        if (!exports.tryAcquire()) {
+            return new Response(Status.TOO_MANY_REQUESTS);
+        }
+        // The session IDs are read before the response is returned, while the request is still open
+        List<String> sessionIds;
+        try {
+            sessionIds = readSessionIds(request);
+        }
+        catch (IOException e) {
+            exports.release();
+            logger.warn("{}Unable to read the export request: {}", LOGGER_PREFIX, e.toString());
+            return new Response(Status.BAD_REQUEST);
+        }
+        if (sessionIds == null) {
+            exports.release();
+            return new Response(Status.PAYLOAD_TOO_LARGE);
+        }
+        try {
+            PipedInputStream results = new PipedInputStream(PIPE_SIZE);
+            Writer output = new OutputStreamWriter(new PipedOutputStream(results), UTF_8);
+            executor.execute(() -> run(export, sessionIds, output));
+
+            Response response = new Response(Status.OK);
+            response.getHeaders().put("Content-Type", "application/x-ndjson");
+            response.setEntity(results);
+            return response;
+        }
+        catch (IOException | RuntimeException e) {
+            exports.release();
+            logger.error(LOGGER_PREFIX + "Unable to start the export", e);
+            return new Response(Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Checks the request carries the valid SSO token of a super user, read from the AM cookie or, for non browser
+     * callers, the header of the same name.
+     */
+    private boolean isAdministrator(Request request) {
+        String cookieName = SystemProperties.get(COOKIE_NAME_PROPERTY, DEFAULT_COOKIE_NAME);
+        String tokenId = request.getHeaders().getFirst(cookieName);
+        if (tokenId == null) {
+            tokenId = request.getCookies().get(cookieName).stream()
+                             .map(Cookie::getValue)
+                             .findFirst()
+                             .orElse(null);
+        }
+        if (tokenId == null) {
+            return false;
+        }
+        try {
+            SSOTokenManager manager = SSOTokenManager.getInstance();
+            SSOToken token = manager.createSSOToken(tokenId);
+            return manager.isValidToken(token)
+                && sessionService.isSuperUser(IdUtils.getIdentity(token).getUniversalId());
+        }
+        catch (SSOException | IdRepoException e) {
+            logger.debug("{}Rejected an export request: {}", LOGGER_PREFIX, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read the non-empty lines of the body, giving up as soon as it is larger than the maximum size.
+     *
+     * @return The session IDs, or null when the body is too large
+     */
+    private static List<String> readSessionIds(Request request) throws IOException {
+        int maxBodySize = SystemProperties.getAsInt(MAX_BODY_SIZE_PROPERTY, 4 * 1024 * 1024);
+        if (ContentLengthHeader.valueOf(request).getLength() > maxBodySize) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = request.getEntity().getRawContentInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (body.size() + read > maxBodySize) {
+                    return null;
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+        List<String> sessionIds = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(
+            new InputStreamReader(new ByteArrayInputStream(body.toByteArray()), UTF_8));
+        String line;
+        while ((line = lines.readLine()) != null) {
+            String sessionId = line.trim();
+            if (!sessionId.isEmpty()) {
+                sessionIds.add(sessionId);
+            }
+        }
+        return sessionIds;
+    }
+
+    private static Set<String> urls(String property, String defaultUrl) {
+        Set<String> urls = new LinkedHashSet<>();
+        for (String url : SystemProperties.get(property, defaultUrl).split(",")) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
+    private void run(ClearBulkExport export, List<String> sessionIds, Writer output) {
+        try (output) {
+            export.run(sessionIds, output);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("{}Export interrupted", LOGGER_PREFIX);
+        }
+        catch (IOException e) {
+            logger.warn(LOGGER_PREFIX + "Export aborted", e);
+        }
+        finally {
+            exports.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static int intParameter(Form query, String name, int defaultValue) {
+        String value = query.getFirst(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
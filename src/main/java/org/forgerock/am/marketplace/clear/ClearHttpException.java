@@ -0,0 +1,59 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import org.forgerock.http.protocol.Status;
+
+/**
+ * CLEAR answered with an unexpected HTTP status.
+ */
+public class ClearHttpException extends ClearServiceException {
+
+    private final int statusCode;
+
+    /**
+     * Exception constructor with error message.
+     *
+     * @param message    The error message.
+     * @param statusCode The HTTP status code of the response.
+     * @param cause      The cause, or null.
+     */
+    public ClearHttpException(String message, int statusCode, Throwable cause) {
+        super(message, cause);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * The HTTP status code of the response.
+     *
+     * @return The status code.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Create the exception matching the status class of the response.
+     *
+     * @param status  The response status.
+     * @param message The error message.
+     * @param cause   The cause, or null.
+     * @return A {@link ClearClientErrorException} for 4xx statuses, a {@link ClearServerErrorException} for 5xx
+     * statuses, otherwise a {@link ClearUnexpectedStatusException}.
+     */
+    static ClearHttpException of(Status status, String message, Throwable cause) {
+        if (status.isClientError()) {
+            return new ClearClientErrorException(message, status.getCode(), cause);
+        }
+        if (status.isServerError()) {
+            return new ClearServerErrorException(message, status.getCode(), cause);
+        }
+        return new ClearUnexpectedStatusException(message, status.getCode(), cause);
+    }
+}
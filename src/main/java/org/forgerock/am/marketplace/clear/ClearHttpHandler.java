@@ -0,0 +1,126 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_CONNECT_TIMEOUT;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_MAX_CONNECTIONS;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_REUSE_CONNECTIONS;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_RETRY_REQUESTS;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_SO_TIMEOUT;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * HTTP client dedicated to CLEAR traffic, so that its connection pool and timeouts can be sized independently of
+ * the handler AM shares between all outbound calls.
+ * <p>
+ * The client is created by {@link ClearPlugin#onStartup()} and closed by {@link ClearPlugin#onShutdown()}. It is
+ * configured through the following AM advanced server properties:
+ * </p>
+ * <ul>
+ *     <li>{@value #MAX_CONNECTIONS_PROPERTY} - the maximum number of pooled connections per route</li>
+ *     <li>{@value #CONNECT_TIMEOUT_PROPERTY} - the TCP connect timeout in milliseconds</li>
+ *     <li>{@value #SO_TIMEOUT_PROPERTY} - the socket read timeout in milliseconds</li>
+ *     <li>{@value #KEEP_ALIVE_PROPERTY} - whether connections, and so their TLS sessions, are kept alive and
+ *     reused</li>
+ * </ul>
+ */
+@Singleton
+public class ClearHttpHandler implements Handler, Closeable {
+
+    static final String MAX_CONNECTIONS_PROPERTY = "org.forgerock.am.marketplace.clear.http.maxConnections";
+    static final String CONNECT_TIMEOUT_PROPERTY = "org.forgerock.am.marketplace.clear.http.connectTimeout";
+    static final String SO_TIMEOUT_PROPERTY = "org.forgerock.am.marketplace.clear.http.soTimeout";
+    static final String KEEP_ALIVE_PROPERTY = "org.forgerock.am.marketplace.clear.http.keepAlive";
+
+    private static final Logger logger = LoggerFactory.getLogger(ClearHttpHandler.class);
+    private static final String LOGGER_PREFIX = "[ClearHttpHandler]" + ClearPlugin.LOG_APPENDER;
+
+    private volatile HttpClientHandler delegate;
+    private boolean closed;
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+        // Only lock while the client has not been created yet
+        HttpClientHandler client = delegate;
+        if (client == null) {
+            try {
+                client = start();
+            }
+            catch (HttpApplicationException e) {
+                logger.error(LOGGER_PREFIX + "Unable to create the CLEAR HTTP client", e);
+                return newResultPromise(new Response(Status.BAD_GATEWAY).setCause(e));
+            }
+        }
+        if (client == null) {
+            return newResultPromise(new Response(Status.SERVICE_UNAVAILABLE));
+        }
+        return client.handle(context, request);
+    }
+
+    /**
+     * Create the HTTP client if it does not exist yet.
+     *
+     * @return The HTTP client, or null once the handler has been closed
+     * @throws HttpApplicationException When the HTTP client cannot be created
+     */
+    synchronized HttpClientHandler start() throws HttpApplicationException {
+        if (delegate == null && !closed) {
+            Options options = Options.defaultOptions()
+                .set(OPTION_MAX_CONNECTIONS, SystemProperties.getAsInt(MAX_CONNECTIONS_PROPERTY, 64))
+                .set(OPTION_CONNECT_TIMEOUT, millis(SystemProperties.getAsInt(CONNECT_TIMEOUT_PROPERTY, 5000)))
+                .set(OPTION_SO_TIMEOUT, millis(SystemProperties.getAsInt(SO_TIMEOUT_PROPERTY, 15000)))
+                .set(OPTION_REUSE_CONNECTIONS, SystemProperties.getAsBoolean(KEEP_ALIVE_PROPERTY, true))
+                .set(OPTION_RETRY_REQUESTS, false);
+            delegate = new HttpClientHandler(options);
+            logger.debug("{}Created the CLEAR HTTP client", LOGGER_PREFIX);
+        }
+        return delegate;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (delegate != null) {
+            try {
+                delegate.close();
+                logger.debug("{}Closed the CLEAR HTTP client", LOGGER_PREFIX);
+            }
+            catch (IOException e) {
+                logger.warn(LOGGER_PREFIX + "Failed to close the CLEAR HTTP client", e);
+            }
+            delegate = null;
+        }
+    }
+
+    private static Duration millis(int value) {
+        return Duration.duration(value, TimeUnit.MILLISECONDS);
+    }
+}
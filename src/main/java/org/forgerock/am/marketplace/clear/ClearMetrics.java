@@ -0,0 +1,236 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.http.protocol.Status;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+
+/**
+ * Latency histograms and counters for the CLEAR node, published through the metric registry used by AM's
+ * monitoring endpoints.
+ * <p>
+ * All metrics are resolved once at construction, so recording on the request path is a lock-free update of an
+ * existing timer or counter.
+ * </p>
+ */
+@Singleton
+public class ClearMetrics {
+
+    private static final String PREFIX = "marketplace.clear";
+    private static final long PERCENTILE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_PERCENTILE_SAMPLES = 100;
+
+    private final MetricRegistry registry;
+    private final Timer createSessionTimer;
+    private final Timer secureResultsTimer;
+    private final Timer standardResultsTimer;
+    private final Timer processTimer;
+    private final Counter nonceMismatchCounter;
+    private final Counter retryCounter;
+    private final Counter retryWinCounter;
+    private final Counter hedgeCounter;
+    private final Counter hedgeWinCounter;
+    private final Counter retryBudgetExhaustedCounter;
+    private final Counter sessionPoolHitCounter;
+    private final Counter sessionPoolMissCounter;
+    private final Counter sessionPoolExpiredCounter;
+    private final Map<Status.Family, Counter> statusCounters = new EnumMap<>(Status.Family.class);
+    private final Map<String, Counter> outcomeCounters = new ConcurrentHashMap<>();
+    private volatile long percentilesRefreshedAt;
+    private volatile long secureResultsP95Millis = -1;
+    private volatile long standardResultsP95Millis = -1;
+
+    /**
+     * Creates the CLEAR metrics in the given registry.
+     *
+     * @param registry The metric registry
+     */
+    @Inject
+    public ClearMetrics(MetricRegistry registry) {
+        this.registry = registry;
+        this.createSessionTimer = registry.timer(name(PREFIX, "createSession"));
+        this.secureResultsTimer = registry.timer(name(PREFIX, "results", "secure"));
+        this.standardResultsTimer = registry.timer(name(PREFIX, "results", "standard"));
+        this.processTimer = registry.timer(name(PREFIX, "process"));
+        this.nonceMismatchCounter = registry.counter(name(PREFIX, "nonce", "mismatch"));
+        this.retryCounter = registry.counter(name(PREFIX, "retry", "attempts"));
+        this.retryWinCounter = registry.counter(name(PREFIX, "retry", "wins"));
+        this.hedgeCounter = registry.counter(name(PREFIX, "hedge", "attempts"));
+        this.hedgeWinCounter = registry.counter(name(PREFIX, "hedge", "wins"));
+        this.retryBudgetExhaustedCounter = registry.counter(name(PREFIX, "retry", "budgetExhausted"));
+        this.sessionPoolHitCounter = registry.counter(name(PREFIX, "sessionPool", "hits"));
+        this.sessionPoolMissCounter = registry.counter(name(PREFIX, "sessionPool", "misses"));
+        this.sessionPoolExpiredCounter = registry.counter(name(PREFIX, "sessionPool", "expired"));
+        registry.gauge(name(PREFIX, "sessionPool", "hitRate"), () -> new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                long hits = sessionPoolHitCounter.getCount();
+                return Ratio.of(hits, hits + sessionPoolMissCounter.getCount());
+            }
+        });
+        this.percentilesRefreshedAt = System.nanoTime() - PERCENTILE_REFRESH_NANOS;
+        for (String outcome : ClearNode.ClearOutcomeProvider.FIXED_OUTCOME_IDS) {
+            outcomeCounters.put(outcome, registry.counter(name(PREFIX, "outcome", outcome)));
+        }
+        for (Status.Family family : Status.Family.values()) {
+            statusCounters.put(family, registry.counter(name(PREFIX, "http", family.name().toLowerCase())));
+        }
+    }
+
+    /**
+     * Record the duration of a create-session call.
+     *
+     * @param startNanos The {@link System#nanoTime()} at which the call started
+     */
+    void recordCreateSession(long startNanos) {
+        record(createSessionTimer, startNanos);
+    }
+
+    /**
+     * Record the duration of a verification results call.
+     *
+     * @param secure     Whether the secure endpoint was called
+     * @param startNanos The {@link System#nanoTime()} at which the call started
+     */
+    void recordResults(boolean secure, long startNanos) {
+        record(secure ? secureResultsTimer : standardResultsTimer, startNanos);
+    }
+
+    /**
+     * Record the duration and outcome of a node execution.
+     *
+     * @param outcome    The outcome, or null when the node sent callbacks
+     * @param startNanos The {@link System#nanoTime()} at which the execution started
+     */
+    void recordProcess(String outcome, long startNanos) {
+        record(processTimer, startNanos);
+        if (outcome != null) {
+            // Outcomes of rules are resolved on first use, the fixed outcomes at construction
+            Counter counter = outcomeCounters.get(outcome);
+            if (counter == null) {
+                counter = outcomeCounters.computeIfAbsent(outcome,
+                                                          o -> registry.counter(name(PREFIX, "outcome", o)));
+            }
+            counter.inc();
+        }
+    }
+
+    /**
+     * Record a nonce mismatch on the return leg.
+     */
+    void recordNonceMismatch() {
+        nonceMismatchCounter.inc();
+    }
+
+    /**
+     * Record the status class of a CLEAR response.
+     *
+     * @param status The response status
+     */
+    void recordStatus(Status status) {
+        statusCounters.get(status.getFamily()).inc();
+    }
+
+    /**
+     * Record a retry of a failed CLEAR call.
+     */
+    void recordRetry() {
+        retryCounter.inc();
+    }
+
+    /**
+     * Record a retry that returned the response of the call.
+     */
+    void recordRetryWin() {
+        retryWinCounter.inc();
+    }
+
+    /**
+     * Record a hedged request sent while the first request of the call was still in flight.
+     */
+    void recordHedge() {
+        hedgeCounter.inc();
+    }
+
+    /**
+     * Record a hedged request whose response arrived before the response of the first request.
+     */
+    void recordHedgeWin() {
+        hedgeWinCounter.inc();
+    }
+
+    /**
+     * Record a retry or hedge that was not sent because the retry budget was used up.
+     */
+    void recordRetryBudgetExhausted() {
+        retryBudgetExhaustedCounter.inc();
+    }
+
+    /**
+     * Record a journey that took a pre-created verification session from the pool.
+     */
+    void recordSessionPoolHit() {
+        sessionPoolHitCounter.inc();
+    }
+
+    /**
+     * Record a journey that found the session pool empty and created its verification session inline.
+     */
+    void recordSessionPoolMiss() {
+        sessionPoolMissCounter.inc();
+    }
+
+    /**
+     * Record a pre-created verification session discarded because it had expired before being used.
+     */
+    void recordSessionPoolExpired() {
+        sessionPoolExpiredCounter.inc();
+    }
+
+    /**
+     * The recent 95th percentile duration of verification results calls, refreshed at most once per second.
+     *
+     * @param secure Whether the secure endpoint is called
+     * @return The 95th percentile in milliseconds, or -1 until enough calls have been recorded
+     */
+    long resultsP95Millis(boolean secure) {
+        long now = System.nanoTime();
+        if (now - percentilesRefreshedAt >= PERCENTILE_REFRESH_NANOS) {
+            percentilesRefreshedAt = now;
+            secureResultsP95Millis = p95Millis(secureResultsTimer);
+            standardResultsP95Millis = p95Millis(standardResultsTimer);
+        }
+        return secure ? secureResultsP95Millis : standardResultsP95Millis;
+    }
+
+    private static long p95Millis(Timer timer) {
+        if (timer.getCount() < MIN_PERCENTILE_SAMPLES) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis((long) timer.getSnapshot().get95thPercentile());
+    }
+
+    private static void record(Timer timer, long startNanos) {
+        timer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+}
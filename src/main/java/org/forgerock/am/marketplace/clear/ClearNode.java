@@ -9,9 +9,10 @@ package org.forgerock.am.marketplace.clear;
 
 import static org.forgerock.am.marketplace.clear.ClearNode.ClearOutcomeProvider.CLIENT_ERROR_OUTCOME_ID;
 
-import java.security.SecureRandom;
-import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 
@@ -22,6 +23,10 @@ import org.forgerock.util.i18n.PreferredLocales;
 import org.forgerock.openam.auth.node.api.*;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.OutcomeProvider;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.util.promise.Promise;
+
+import org.forgerock.openam.authentication.callbacks.PollingWaitCallback;
 
 import com.sun.identity.authentication.spi.RedirectCallback;
 import com.sun.identity.sm.RequiredValueValidator;
@@ -40,30 +45,41 @@ public class ClearNode implements Node {
     private static final Logger logger = LoggerFactory.getLogger(ClearNode.class);
     private static final String LOGGER_PREFIX = "[ClearNode]" + ClearPlugin.LOG_APPENDER;
 
-    private static final String VERIFICATION_SESSION_ID = "id";
-    private static final String VERIFICATION_SESSION_TOKEN = "token";
     private static final String SESSION_ID = "sessionId";
     private static final String NONCE = "nonce";
+    private static final String POLL_DEADLINE = "clearPollDeadline";
+    private static final String POLL_ATTEMPT = "clearPollAttempt";
+    private static final int MAX_BACKOFF_SHIFT = 20;
 
     private static final String BUNDLE = ClearNode.class.getName();
 
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
-
     private final Config config;
+    private final Realm realm;
     private final ClearClient client;
+    private final ClearMetrics metrics;
+    private final ClearSecrets secrets;
+    private final ClearSessionPool sessionPool;
 
     /**
      * Configuration for the CLEAR node.
      */
     public interface Config {
         /**
-         * Shared state attribute containing CLEAR API Key
+         * Shared state attribute containing CLEAR API Key, used when no API key secret label is set
          *
          * @return The CLEAR API Key shared state attribute
          */
-        @Attribute(order = 100, requiredValue = true)
+        @Attribute(order = 100)
         String apiKey();
 
+        /**
+         * The secret label the CLEAR API key is mapped to in the realm's secret stores
+         *
+         * @return The API key secret label, overriding the API key attribute when set
+         */
+        @Attribute(order = 150)
+        Optional<String> apiKeySecretLabel();
+
         /**
          * Shared state attribute containing CLEAR Project ID
          *
@@ -89,22 +105,298 @@ public class ClearNode implements Node {
         default boolean secureEndpointToggle() {
             return true;
         }
+
+        /**
+         * Candidate base URLs of the CLEAR API, also used for the standard results endpoint
+         *
+         * @return The CLEAR API base URLs
+         */
+        @Attribute(order = 410, validators = {ClearUrlValidator.class})
+        default Set<String> apiUrls() {
+            return Collections.singleton(ClearClient.DEFAULT_API_URL);
+        }
+
+        /**
+         * Candidate base URLs of the secure results endpoint
+         *
+         * @return The secure results endpoint base URLs
+         */
+        @Attribute(order = 420, validators = {ClearUrlValidator.class})
+        default Set<String> secureApiUrls() {
+            return Collections.singleton(ClearClient.DEFAULT_SECURE_API_URL);
+        }
+
+        /**
+         * URL of CLEAR's hosted verification UI
+         *
+         * @return The verification UI URL
+         */
+        @Attribute(order = 430, validators = {ClearUrlValidator.class})
+        default String verificationUiUrl() {
+            return ClearClient.DEFAULT_VERIFICATION_UI_URL;
+        }
+
+        /**
+         * The time budget, in milliseconds, for creating the verification session
+         *
+         * @return The create-session budget in milliseconds
+         */
+        @Attribute(order = 500)
+        default int createSessionBudget() {
+            return ClearClient.DEFAULT_BUDGET_MILLIS;
+        }
+
+        /**
+         * The time budget, in milliseconds, for retrieving the verification results on each return
+         *
+         * @return The results budget in milliseconds
+         */
+        @Attribute(order = 505)
+        default int resultsBudget() {
+            return ClearClient.DEFAULT_BUDGET_MILLIS;
+        }
+
+        /**
+         * The number of verification sessions created ahead of the journeys that use them
+         *
+         * @return The session pool size, zero creates every session inline
+         */
+        @Attribute(order = 540)
+        default int sessionPoolSize() {
+            return 0;
+        }
+
+        /**
+         * How long, in seconds, a pre-created verification session is handed out after its creation
+         *
+         * @return The session pool TTL in seconds
+         */
+        @Attribute(order = 550)
+        default int sessionPoolTtl() {
+            return 300;
+        }
+
+        /**
+         * How long, in seconds, verification results are cached for replayed return requests
+         *
+         * @return The results cache time-to-live in seconds, zero disables the cache
+         */
+        @Attribute(order = 600)
+        default int resultsCacheTtl() {
+            return 30;
+        }
+
+        /**
+         * The maximum number of verification sessions held in the results cache
+         *
+         * @return The results cache size
+         */
+        @Attribute(order = 700)
+        default int resultsCacheSize() {
+            return 1000;
+        }
+
+        /**
+         * JSON pointers of the verification result fields to keep, e.g. /status or /traits/first_name
+         *
+         * @return The verification result fields, an empty set keeps the full response
+         */
+        @Attribute(order = 800)
+        default Set<String> resultFields() {
+            return Collections.emptySet();
+        }
+
+        /**
+         * Toggle attribute that uses verification results pushed by CLEAR's webhook when available
+         *
+         * @return True if webhook results are used before calling CLEAR, otherwise false
+         */
+        @Attribute(order = 850)
+        default boolean webhookResultsToggle() {
+            return false;
+        }
+
+        /**
+         * Toggle attribute that enables the circuit breaker and bulkhead around the CLEAR endpoints
+         *
+         * @return True if calls to CLEAR are guarded by the circuit breaker, otherwise false
+         */
+        @Attribute(order = 900)
+        default boolean circuitBreakerToggle() {
+            return true;
+        }
+
+        /**
+         * The percentage of failed or slow calls that opens the circuit breaker
+         *
+         * @return The circuit breaker failure rate threshold
+         */
+        @Attribute(order = 1000)
+        default int circuitBreakerFailureRate() {
+            return 50;
+        }
+
+        /**
+         * The duration, in milliseconds, above which a CLEAR call counts as slow
+         *
+         * @return The slow call threshold in milliseconds
+         */
+        @Attribute(order = 1100)
+        default int circuitBreakerSlowCallThreshold() {
+            return 5000;
+        }
+
+        /**
+         * The number of most recent calls the failure and slow call rates are computed over
+         *
+         * @return The circuit breaker window size
+         */
+        @Attribute(order = 1200)
+        default int circuitBreakerWindowSize() {
+            return 20;
+        }
+
+        /**
+         * How long, in seconds, the circuit breaker stays open before a trial call is let through
+         *
+         * @return The circuit breaker open duration in seconds
+         */
+        @Attribute(order = 1300)
+        default int circuitBreakerOpenDuration() {
+            return 30;
+        }
+
+        /**
+         * The maximum number of concurrent calls to each CLEAR endpoint
+         *
+         * @return The bulkhead size
+         */
+        @Attribute(order = 1400)
+        default int maxConcurrentCalls() {
+            return 100;
+        }
+
+        /**
+         * The maximum number of times a failed CLEAR call is retried
+         *
+         * @return The maximum number of retries, zero disables retries
+         */
+        @Attribute(order = 1410)
+        default int maxRetries() {
+            return 2;
+        }
+
+        /**
+         * The backoff, in milliseconds, before the first retry, doubled on each further retry and jittered
+         *
+         * @return The retry backoff in milliseconds
+         */
+        @Attribute(order = 1420)
+        default int retryBackoff() {
+            return 200;
+        }
+
+        /**
+         * The percentage of CLEAR calls that may be retried or hedged
+         *
+         * @return The retry budget percentage
+         */
+        @Attribute(order = 1430)
+        default int retryBudget() {
+            return 10;
+        }
+
+        /**
+         * Enables sending a second verification results request when the first one is slower than usual
+         *
+         * @return true if verification results requests are hedged
+         */
+        @Attribute(order = 1440)
+        default boolean hedgeToggle() {
+            return false;
+        }
+
+        /**
+         * Verification session statuses that indicate CLEAR has not finished the verification yet
+         *
+         * @return The pending verification session statuses
+         */
+        @Attribute(order = 1500)
+        default Set<String> pendingStatuses() {
+            return new HashSet<>(Arrays.asList("awaiting_user_input", "processing"));
+        }
+
+        /**
+         * How long, in seconds, the node polls a pending verification session before the timeout outcome
+         *
+         * @return The polling timeout in seconds, zero goes to the pending outcome without polling
+         */
+        @Attribute(order = 1600)
+        default int pollingTimeout() {
+            return 60;
+        }
+
+        /**
+         * The wait, in milliseconds, before the first poll of a pending verification session
+         *
+         * @return The initial polling interval in milliseconds
+         */
+        @Attribute(order = 1700)
+        default int pollingInitialInterval() {
+            return 1000;
+        }
+
+        /**
+         * The longest wait, in milliseconds, between two polls of a pending verification session
+         *
+         * @return The maximum polling interval in milliseconds
+         */
+        @Attribute(order = 1800)
+        default int pollingMaxInterval() {
+            return 8000;
+        }
+
+        /**
+         * Rules that route on the verification results, e.g. verified: /status eq success
+         *
+         * @return The outcome rules, evaluated in order
+         */
+        @Attribute(order = 1900, validators = {ClearOutcomeRulesValidator.class})
+        default List<String> outcomeRules() {
+            return Collections.emptyList();
+        }
     }
 
     /**
      * The CLEAR node constructor.
      *
      * @param config the node configuration.
+     * @param realm the realm of the journey.
      * @param client the {@link ClearClient} instance.
+     * @param metrics the {@link ClearMetrics} instance.
+     * @param secrets the {@link ClearSecrets} instance.
+     * @param sessionPool the {@link ClearSessionPool} instance.
      */
     @Inject
-    public ClearNode(@Assisted Config config, ClearClient client) {
+    public ClearNode(@Assisted Config config, @Assisted Realm realm, ClearClient client, ClearMetrics metrics,
+                     ClearSecrets secrets, ClearSessionPool sessionPool) {
         this.config = config;
+        this.realm = realm;
         this.client = client;
+        this.metrics = metrics;
+        this.secrets = secrets;
+        this.sessionPool = sessionPool;
     }
 
     @Override
     public Action process(TreeContext context) {
+        long start = System.nanoTime();
+        Action action = verify(context);
+        metrics.recordProcess(action.outcome, start);
+        return action;
+    }
+
+    private Action verify(TreeContext context) {
 
         // Create the flow input based on the node state
         NodeState nodeState = context.getStateFor(this);
@@ -118,35 +410,49 @@ public class ClearNode implements Node {
                                           ? nodeState.get(SESSION_ID).asString()
                                           : null;
 
+            // A polling round for a pending verification session, the nonce was checked on the first return
+            if (context.getCallback(PollingWaitCallback.class).isPresent() && nodeState.isDefined(POLL_DEADLINE)) {
+                return retrieveResults(context, nodeState, sharedStateSessionId);
+            }
+
             // Checks if NONCE value exists in the API request parameters.
             // If false, create the verification session
             if (!parameters.containsKey(NONCE)) {
 
-                // Create nonce value to include with the API Call's redirect URL
-                String nonce = generateNonce();
-
-                // API call to create verification session
-                JsonValue verificationSessionResponse = client.createVerificationSession(
-                    config.apiKey(),
-                    config.projectId(),
-                    config.redirectUrl(),
-                    nonce
-                                                                                        );
+                ClearDeadline deadline = ClearDeadline.after(config.createSessionBudget());
+                String apiKey = apiKeys(deadline).active();
+
+                // Take a pre-created session, which carries its own nonce, when the pool is enabled
+                ClearSessionPool.Session session = config.sessionPoolSize() > 0
+                                                   ? sessionPool.take(config, apiKey)
+                                                   : null;
+                if (session == null) {
+                    // Create nonce value to include with the API Call's redirect URL
+                    long createdAt = System.currentTimeMillis();
+                    String nonce = ClearNonces.generate();
+
+                    // API call to create verification session
+                    JsonValue verificationSessionResponse = await(client.createVerificationSessionAsync(
+                        config,
+                        apiKey,
+                        nonce,
+                        deadline
+                                                                                                        ), deadline);
+                    session = ClearSessionPool.Session.of(verificationSessionResponse, nonce, createdAt);
+                }
 
-                // Store the `verification_session.id` from the response
+                // Add `verification_session.id` and the nonce to node shared state
                 // This will be used to identify which session the GET request will return data for
-                String verificationSessionId = verificationSessionResponse.get(VERIFICATION_SESSION_ID).asString();
-
-                // Add `verification_session.id` and the newly generated nonce to node shared state
-                nodeState.putShared(SESSION_ID, verificationSessionId);
-                nodeState.putShared(NONCE, nonce);
+                // The stored nonce ties the return request to this journey
+                nodeState.putShared(SESSION_ID, session.id());
+                nodeState.putShared(NONCE, session.nonce());
 
                 // Store the `verification_session.token` for the redirect to CLEAR's verification UI
-                String sessionToken = verificationSessionResponse.get(VERIFICATION_SESSION_TOKEN).asString();
+                String sessionToken = session.token();
 
                 // Building and executing the CLEAR redirect URL
                 RedirectCallback redirectCallback = new RedirectCallback(
-                    "https://verified.clearme.com/verify?token=" + sessionToken,
+                    config.verificationUiUrl() + "?token=" + sessionToken,
                     null,
                     "GET"
                 );
@@ -157,36 +463,39 @@ public class ClearNode implements Node {
             else {
                 // Retrieve the nonce values from authentication tree context
                 String nonce = parameters.get(NONCE).get(0);
-                String nonceState = nodeState.get(NONCE).asString();
 
                 // Security comparison for nonce values
-                if (!nonceState.equals(nonce)) {
+                if (!ClearNonces.matches(nodeState.isDefined(NONCE) ? nodeState.get(NONCE).asString() : null,
+                                         nonce)) {
                     logger.error("Mismatched nonce value exiting out of journey.");
+                    metrics.recordNonceMismatch();
                     return Action.goTo(CLIENT_ERROR_OUTCOME_ID).build();
                 }
 
-                // Check the value of the toggle button for desired endpoint
-                String verificationResultsEndpoint;
-                if (config.secureEndpointToggle()) {
-                    verificationResultsEndpoint = "https://secure.verified.clearme.com";
-                }
-                else {
-                    verificationResultsEndpoint = "https://verified.clearme.com";
-                }
+                // The nonce is single use, so a return request replayed against this journey's state no longer
+                // matches. State carried in a client-side auth ID can still be replayed until the auth ID expires.
+                nodeState.remove(NONCE);
 
-                // API call to check user's authentication status
-                JsonValue verificationResultsResponse = client.getUserVerificationResults(
-                    verificationResultsEndpoint,
-                    config.apiKey(),
-                    sharedStateSessionId
-                                                                                         );
-                // Store the user's verification results
-                nodeState.putTransient("verificationResults", verificationResultsResponse);
+                // Start the polling window for sessions that are still pending
+                nodeState.putShared(POLL_DEADLINE,
+                                    System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.pollingTimeout()));
+                nodeState.putShared(POLL_ATTEMPT, 0);
 
-                return Action.goTo(ClearOutcomeProvider.CONTINUE_OUTCOME_ID).build();
+                return retrieveResults(context, nodeState, sharedStateSessionId);
             }
 
         }
+        catch (ClearServiceException ex) {
+            // Expected CLEAR failures only carry a sampled stack trace, so record them without formatting one
+            if (ex.hasStackTrace()) {
+                logger.error(LOGGER_PREFIX + "Exception occurred: ", ex);
+            }
+            else {
+                logger.error("{}Exception occurred: {}", LOGGER_PREFIX, ex.toString());
+            }
+            nodeState.putTransient(LOGGER_PREFIX + "Exception", new Date() + ": " + ex.getMessage());
+            return Action.goTo(CLIENT_ERROR_OUTCOME_ID).build();
+        }
         catch (Exception ex) {
             String stackTrace = ExceptionUtils.getStackTrace(ex);
             logger.error(LOGGER_PREFIX + "Exception occurred: ", ex);
@@ -196,8 +505,110 @@ public class ClearNode implements Node {
         }
     }
 
-    private static String generateNonce() {
-        return new BigInteger(160, SECURE_RANDOM).toString(Character.MAX_RADIX);
+    /**
+     * Retrieve the verification results and route on the session status. While the session is pending, the node
+     * asks the client to wait with an exponentially growing interval until the polling deadline is reached.
+     */
+    private Action retrieveResults(TreeContext context, NodeState nodeState, String sessionId)
+        throws ClearServiceException, InterruptedException {
+
+        // API call to check user's authentication status, the toggle button selects the desired endpoint
+        ClearDeadline deadline = ClearDeadline.after(config.resultsBudget());
+        JsonValue verificationResultsResponse = null;
+        List<String> keys = apiKeys(deadline).all();
+        for (int i = 0; verificationResultsResponse == null; i++) {
+            try {
+                verificationResultsResponse = await(client.getUserVerificationResultsAsync(
+                    config,
+                    keys.get(i),
+                    sessionId,
+                    deadline
+                                                                                           ), deadline);
+            }
+            catch (ClearClientErrorException e) {
+                // The session may have been created with a key that has since been rotated out
+                if (i + 1 == keys.size() || !isRejectedKey(e)) {
+                    throw e;
+                }
+            }
+        }
+
+        String status = verificationResultsResponse.get(ClearClient.STATUS).asString();
+        if (status != null && config.pendingStatuses().contains(status)) {
+            if (config.pollingTimeout() <= 0) {
+                return complete(nodeState, verificationResultsResponse, ClearOutcomeProvider.PENDING_OUTCOME_ID);
+            }
+            int attempt = nodeState.get(POLL_ATTEMPT).asInteger();
+            long wait = Math.min((long) config.pollingInitialInterval() << Math.min(attempt, MAX_BACKOFF_SHIFT),
+                                 config.pollingMaxInterval());
+            if (System.currentTimeMillis() + wait > nodeState.get(POLL_DEADLINE).asLong()) {
+                return complete(nodeState, verificationResultsResponse, ClearOutcomeProvider.TIMEOUT_OUTCOME_ID);
+            }
+            nodeState.putShared(POLL_ATTEMPT, attempt + 1);
+
+            ResourceBundle bundle = context.request.locales.getBundleInPreferredLocale(
+                BUNDLE, ClearNode.class.getClassLoader());
+            return Action.send(PollingWaitCallback.makeCallback()
+                                                  .withWaitTime(String.valueOf(wait))
+                                                  .withMessage(bundle.getString("pollingWaitMessage"))
+                                                  .build()).build();
+        }
+
+        return complete(nodeState, verificationResultsResponse,
+                        ClearOutcomeRules.of(config.outcomeRules())
+                                         .evaluate(verificationResultsResponse,
+                                                   ClearOutcomeProvider.CONTINUE_OUTCOME_ID));
+    }
+
+    private Action complete(NodeState nodeState, JsonValue verificationResults, String outcome) {
+        nodeState.remove(POLL_DEADLINE);
+        nodeState.remove(POLL_ATTEMPT);
+
+        // Store the user's verification results
+        nodeState.putTransient("verificationResults", verificationResults);
+
+        return Action.goTo(outcome).build();
+    }
+
+    /**
+     * Resolve the CLEAR API keys, from the realm's secret stores when a secret label is set.
+     */
+    private ClearSecrets.Keys apiKeys(ClearDeadline deadline) throws ClearServiceException, InterruptedException {
+        Optional<String> label = config.apiKeySecretLabel();
+        if (label.isPresent() && !label.get().isEmpty()) {
+            return await(secrets.get(realm, label.get()), deadline);
+        }
+        if (config.apiKey() == null || config.apiKey().isEmpty()) {
+            throw new ClearServiceException("Neither a CLEAR API key nor an API key secret label is configured");
+        }
+        return ClearSecrets.Keys.of(config.apiKey());
+    }
+
+    private static boolean isRejectedKey(ClearClientErrorException e) {
+        int status = e.getStatusCode();
+        return status == 401 || status == 403 || status == 404;
+    }
+
+    /**
+     * Wait for a CLEAR API call to complete, bounded by the remaining budget of the leg. The in-flight
+     * request is cancelled if the budget runs out so that the connection is released straight away.
+     *
+     * @param promise  The pending CLEAR API call
+     * @param deadline The deadline of the leg
+     * @param <T>      The type of the response
+     * @return The response from the operation
+     * @throws ClearServiceException When the call fails or does not complete in time
+     * @throws InterruptedException  When the request thread is interrupted while waiting
+     */
+    private <T> T await(Promise<T, ClearServiceException> promise, ClearDeadline deadline)
+        throws ClearServiceException, InterruptedException {
+        try {
+            return promise.getOrThrow(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | CancellationException e) {
+            promise.cancel(true);
+            throw new ClearTimeoutException("CLEAR API call did not complete within its time budget", e);
+        }
     }
 
     @Override
@@ -215,10 +626,18 @@ public class ClearNode implements Node {
         };
     }
 
+    /**
+     * Provides the outcomes of the configured outcome rules, followed by the fixed outcomes of the node.
+     */
     public static class ClearOutcomeProvider implements OutcomeProvider {
 
         static final String CONTINUE_OUTCOME_ID = "continue";
         static final String CLIENT_ERROR_OUTCOME_ID = "clientError";
+        static final String PENDING_OUTCOME_ID = "pending";
+        static final String TIMEOUT_OUTCOME_ID = "timeout";
+
+        static final Set<String> FIXED_OUTCOME_IDS = new HashSet<>(Arrays.asList(
+            CONTINUE_OUTCOME_ID, CLIENT_ERROR_OUTCOME_ID, PENDING_OUTCOME_ID, TIMEOUT_OUTCOME_ID));
 
         @Override
         public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue jsonValue) {
@@ -226,7 +645,18 @@ public class ClearNode implements Node {
 
             ArrayList<Outcome> outcomes = new ArrayList<>();
 
+            JsonValue rules = jsonValue == null ? null : jsonValue.get("outcomeRules");
+            if (rules != null && rules.isList()) {
+                for (String outcome : ClearOutcomeRules.outcomes(rules.asList(String.class))) {
+                    if (!FIXED_OUTCOME_IDS.contains(outcome)) {
+                        outcomes.add(new Outcome(outcome, outcome));
+                    }
+                }
+            }
+
             outcomes.add(new Outcome(CONTINUE_OUTCOME_ID, bundle.getString(CONTINUE_OUTCOME_ID)));
+            outcomes.add(new Outcome(PENDING_OUTCOME_ID, bundle.getString(PENDING_OUTCOME_ID)));
+            outcomes.add(new Outcome(TIMEOUT_OUTCOME_ID, bundle.getString(TIMEOUT_OUTCOME_ID)));
             outcomes.add(new Outcome(CLIENT_ERROR_OUTCOME_ID, bundle.getString(CLIENT_ERROR_OUTCOME_ID)));
 
             return outcomes;
@@ -0,0 +1,52 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Issues and checks the nonce that protects the return leg of the CLEAR node.
+ * <p>
+ * Random values come from a per-thread {@link SecureRandom}, so concurrent journeys do not contend on a single
+ * generator. The nonce is kept in shared state and matched there, which is what ties the return request to the
+ * journey that issued it.
+ * </p>
+ */
+final class ClearNonces {
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private ClearNonces() {
+    }
+
+    /**
+     * Generate a random nonce to be kept in shared state.
+     *
+     * @return A 160-bit random nonce, base 36 encoded
+     */
+    static String generate() {
+        return new BigInteger(160, RANDOM.get()).toString(Character.MAX_RADIX);
+    }
+
+    /**
+     * Compare two nonces in constant time.
+     *
+     * @param expected The expected nonce
+     * @param actual   The nonce received with the return request
+     * @return True if both nonces are present and equal
+     */
+    static boolean matches(String expected, String actual) {
+        return expected != null && actual != null && MessageDigest.isEqual(expected.getBytes(UTF_8),
+                                                                           actual.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+
+/**
+ * Declarative rules that route the CLEAR node on its verification results, compiled once into predicates.
+ * <p>
+ * Each rule has the form {@code <outcome>: <condition> [and <condition> ...]}, where a condition is
+ * {@code <json pointer> <operator> [<value>]}. The supported operators are:
+ * </p>
+ * <ul>
+ *     <li>{@code eq}, {@code ne} - the field equals, or does not equal, the value</li>
+ *     <li>{@code gt}, {@code ge}, {@code lt}, {@code le} - numeric comparison with the value</li>
+ *     <li>{@code exists} - the field is present and not null</li>
+ *     <li>{@code age_gt}, {@code age_lt} - the date in the field is more, or less, than the value in days ago</li>
+ * </ul>
+ * <p>
+ * For example {@code verified: /status eq success and /traits/document/issue_date age_lt 3650}. Rules are
+ * evaluated in order and the first matching rule selects the outcome.
+ * </p>
+ */
+final class ClearOutcomeRules {
+
+    private static final int MAX_COMPILED = 64;
+    private static final Map<List<String>, ClearOutcomeRules> COMPILED = new ConcurrentHashMap<>();
+    private static final ClearOutcomeRules NONE = new ClearOutcomeRules(Collections.emptyList());
+
+    private final List<Rule> rules;
+    private final String[] pointers;
+
+    private ClearOutcomeRules(List<String> definitions) {
+        List<Rule> compiled = new ArrayList<>(definitions.size());
+        Set<String> referenced = new LinkedHashSet<>();
+        for (String definition : definitions) {
+            if (!definition.trim().isEmpty()) {
+                compiled.add(Rule.parse(definition, referenced));
+            }
+        }
+        this.rules = compiled;
+        this.pointers = referenced.toArray(new String[0]);
+    }
+
+    /**
+     * Return the compiled form of the rules, compiling them on first use.
+     *
+     * @param definitions The rule definitions
+     * @return The compiled rules
+     * @throws IllegalArgumentException When a rule cannot be parsed
+     */
+    static ClearOutcomeRules of(List<String> definitions) {
+        if (definitions == null || definitions.isEmpty()) {
+            return NONE;
+        }
+        ClearOutcomeRules compiled = COMPILED.get(definitions);
+        if (compiled == null) {
+            if (COMPILED.size() >= MAX_COMPILED) {
+                COMPILED.clear();
+            }
+            compiled = COMPILED.computeIfAbsent(definitions, ClearOutcomeRules::new);
+        }
+        return compiled;
+    }
+
+    /**
+     * The distinct outcomes the rules can select, in rule order.
+     *
+     * @param definitions The rule definitions
+     * @return The outcome names, ignoring rules that cannot be parsed
+     */
+    static Set<String> outcomes(List<String> definitions) {
+        Set<String> outcomes = new LinkedHashSet<>();
+        for (String definition : definitions) {
+            int separator = definition.indexOf(':');
+            if (separator > 0) {
+                outcomes.add(definition.substring(0, separator).trim());
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * The JSON pointers of the fields the rules read, which a projection of the results must keep.
+     *
+     * @return The referenced JSON pointers
+     */
+    String[] pointers() {
+        return pointers.clone();
+    }
+
+    /**
+     * Select the outcome for the verification results.
+     *
+     * @param results        The verification results
+     * @param defaultOutcome The outcome used when no rule matches
+     * @return The outcome of the first matching rule, or the default outcome
+     */
+    String evaluate(JsonValue results, String defaultOutcome) {
+        for (Rule rule : rules) {
+            if (rule.condition.test(results)) {
+                return rule.outcome;
+            }
+        }
+        return defaultOutcome;
+    }
+
+    private static final class Rule {
+        private final String outcome;
+        private final Predicate<JsonValue> condition;
+
+        private Rule(String outcome, Predicate<JsonValue> condition) {
+            this.outcome = outcome;
+            this.condition = condition;
+        }
+
+        private static Rule parse(String definition, Set<String> pointers) {
+            int separator = definition.indexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Missing outcome in rule: " + definition);
+            }
+            String outcome = definition.substring(0, separator).trim();
+            Predicate<JsonValue> condition = null;
+            for (String clause : definition.substring(separator + 1).split("\\s+and\\s+")) {
+                Predicate<JsonValue> parsed = parseCondition(clause.trim(), pointers);
+                condition = condition == null ? parsed : condition.and(parsed);
+            }
+            return new Rule(outcome, condition);
+        }
+
+        private static Predicate<JsonValue> parseCondition(String clause, Set<String> pointers) {
+            String[] parts = clause.split("\\s+", 3);
+            if (parts.length < 2 || !parts[0].startsWith("/")) {
+                throw new IllegalArgumentException("Invalid condition: " + clause);
+            }
+            JsonPointer pointer = new JsonPointer(parts[0]);
+            pointers.add(parts[0]);
+            String operator = parts[1];
+            if ("exists".equals(operator)) {
+                return results -> value(results, pointer) != null;
+            }
+            if (parts.length < 3) {
+                throw new IllegalArgumentException("Missing value in condition: " + clause);
+            }
+            String expected = unquote(parts[2].trim());
+            switch (operator) {
+            case "eq":
+                return results -> matches(value(results, pointer), expected);
+            case "ne":
+                return results -> !matches(value(results, pointer), expected);
+            case "gt":
+                return compare(pointer, number(expected, clause), c -> c > 0);
+            case "ge":
+                return compare(pointer, number(expected, clause), c -> c >= 0);
+            case "lt":
+                return compare(pointer, number(expected, clause), c -> c < 0);
+            case "le":
+                return compare(pointer, number(expected, clause), c -> c <= 0);
+            case "age_gt":
+                long minDays = (long) number(expected, clause);
+                return results -> {
+                    Long age = ageInDays(value(results, pointer));
+                    return age != null && age > minDays;
+                };
+            case "age_lt":
+                long maxDays = (long) number(expected, clause);
+                return results -> {
+                    Long age = ageInDays(value(results, pointer));
+                    return age != null && age < maxDays;
+                };
+            default:
+                throw new IllegalArgumentException("Unknown operator in condition: " + clause);
+            }
+        }
+    }
+
+    private static Object value(JsonValue results, JsonPointer pointer) {
+        JsonValue value = results.get(pointer);
+        return value == null ? null : value.getObject();
+    }
+
+    private static boolean matches(Object actual, String expected) {
+        if (actual instanceof Number) {
+            try {
+                return ((Number) actual).doubleValue() == Double.parseDouble(expected);
+            }
+            catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return actual != null && String.valueOf(actual).equals(expected);
+    }
+
+    private static Predicate<JsonValue> compare(JsonPointer pointer, double expected, IntPredicate test) {
+        return results -> {
+            Object actual = value(results, pointer);
+            if (actual instanceof Number) {
+                return test.test(Double.compare(((Number) actual).doubleValue(), expected));
+            }
+            if (actual instanceof String) {
+                try {
+                    return test.test(Double.compare(Double.parseDouble((String) actual), expected));
+                }
+                catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static Long ageInDays(Object actual) {
+        LocalDate date;
+        if (actual instanceof Number) {
+            date = Instant.ofEpochSecond(((Number) actual).longValue()).atZone(ZoneOffset.UTC).toLocalDate();
+        }
+        else if (actual instanceof String) {
+            String text = (String) actual;
+            try {
+                date = text.length() > 10
+                       ? Instant.parse(text).atZone(ZoneOffset.UTC).toLocalDate()
+                       : LocalDate.parse(text);
+            }
+            catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+        else {
+            return null;
+        }
+        return ChronoUnit.DAYS.between(date, LocalDate.now(ZoneOffset.UTC));
+    }
+
+    private static double number(String value, String clause) {
+        try {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number in condition: " + clause);
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
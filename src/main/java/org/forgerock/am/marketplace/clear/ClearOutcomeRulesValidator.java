@@ -0,0 +1,35 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import com.sun.identity.sm.ServiceAttributeValidator;
+
+/**
+ * Validates that configured outcome rules can be compiled, so that they are rejected when the node is saved rather
+ * than on the first journey.
+ */
+public class ClearOutcomeRulesValidator implements ServiceAttributeValidator {
+
+    @Override
+    public boolean validate(Set<String> values) {
+        if (values == null || values.isEmpty()) {
+            return true;
+        }
+        try {
+            ClearOutcomeRules.of(new ArrayList<>(values));
+            return true;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
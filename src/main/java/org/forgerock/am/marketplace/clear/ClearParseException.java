@@ -0,0 +1,25 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+/**
+ * A CLEAR response could not be read or parsed.
+ */
+public class ClearParseException extends ClearServiceException {
+
+    /**
+     * Exception constructor with error message.
+     *
+     * @param message The error message.
+     * @param cause   The cause, or null.
+     */
+    public ClearParseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
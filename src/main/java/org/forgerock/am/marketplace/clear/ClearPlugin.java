@@ -10,7 +10,10 @@ package org.forgerock.am.marketplace.clear;
 
 import java.util.Map;
 
+import javax.inject.Inject;
+
 import com.google.common.collect.ImmutableMap;
+import org.forgerock.http.HttpApplicationException;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.plugins.PluginException;
@@ -52,11 +55,45 @@ import static java.util.Arrays.asList;
  */
 
 public class ClearPlugin extends AbstractNodeAmPlugin {
-    protected static final String CURRENT_VERSION = "1.0.0";
+    protected static final String CURRENT_VERSION = "1.1.0";
     protected static final String LOG_APPENDER = "[Version: " + CURRENT_VERSION + "][Marketplace]";
     private static final Logger logger = LoggerFactory.getLogger(ClearPlugin.class);
     private final String LOGGER_PREFIX = "[ClearPlugin]" + ClearPlugin.LOG_APPENDER;
 
+    private ClearHttpHandler httpHandler;
+    private ClearExportHandler exportHandler;
+    private ClearClient client;
+
+    /**
+     * Set the HTTP client dedicated to CLEAR traffic, which this plugin starts and closes.
+     *
+     * @param httpHandler The CLEAR HTTP client
+     */
+    @Inject
+    public void setHttpHandler(ClearHttpHandler httpHandler) {
+        this.httpHandler = httpHandler;
+    }
+
+    /**
+     * Set the bulk export handler, whose export threads this plugin stops.
+     *
+     * @param exportHandler The bulk export handler
+     */
+    @Inject
+    public void setExportHandler(ClearExportHandler exportHandler) {
+        this.exportHandler = exportHandler;
+    }
+
+    /**
+     * Set the CLEAR client, whose scheduler this plugin stops.
+     *
+     * @param client The CLEAR client
+     */
+    @Inject
+    public void setClient(ClearClient client) {
+        this.client = client;
+    }
+
     /**
      * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
      * registered at the appropriate times in plugin lifecycle.
@@ -66,7 +103,7 @@ public class ClearPlugin extends AbstractNodeAmPlugin {
     @Override
     protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
         return new ImmutableMap.Builder<String, Iterable<? extends Class<? extends Node>>>()
-            .put("1.0.0", asList(ClearNode.class))
+            .put(CURRENT_VERSION, asList(ClearNode.class))
             .build();
     }
 
@@ -102,4 +139,32 @@ public class ClearPlugin extends AbstractNodeAmPlugin {
         }
         super.upgrade(fromVersion);
     }
-}
\ No newline at end of file
+
+    /**
+     * Register the nodes and create the HTTP client dedicated to CLEAR traffic.
+     *
+     * @throws PluginException When the nodes cannot be registered or the HTTP client cannot be created
+     */
+    @Override
+    public void onStartup() throws PluginException {
+        super.onStartup();
+        try {
+            httpHandler.start();
+        }
+        catch (HttpApplicationException e) {
+            throw new PluginException(e.getMessage());
+        }
+    }
+
+    /**
+     * Stop running exports and the CLEAR client scheduler, and close the HTTP client dedicated to CLEAR traffic,
+     * releasing its pooled connections.
+     */
+    @Override
+    public void onShutdown() {
+        logger.debug("{} closing the CLEAR HTTP client", LOGGER_PREFIX);
+        exportHandler.close();
+        client.close();
+        httpHandler.close();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.forgerock.http.header.AuthorizationHeader;
+import org.forgerock.http.header.ContentTypeHeader;
+import org.forgerock.http.header.authorization.BearerToken;
+import org.forgerock.http.protocol.Request;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * The parts of the CLEAR requests that only depend on the API key, endpoint and node configuration, computed once
+ * and shared by every request built from the template.
+ * <p>
+ * The create-session body is pre-serialised around the nonce, which is the only part that changes per journey.
+ * Nonces are base-36 or base64url encoded, so they are written into the body without JSON escaping.
+ * </p>
+ */
+final class ClearRequestTemplate {
+
+    private static final String APPLICATION_JSON = "application/json; charset=UTF-8";
+    private static final String ACCEPT = "Accept";
+    private static final String ANY = "*/*";
+
+    private final ClearEndpoints.Endpoint endpoint;
+    private final String authorization;
+    private final byte[] sessionBodyPrefix;
+    private final byte[] sessionBodySuffix;
+
+    private ClearRequestTemplate(ClearEndpoints.Endpoint endpoint, String authorization, byte[] sessionBodyPrefix,
+                                 byte[] sessionBodySuffix) {
+        this.endpoint = endpoint;
+        this.authorization = authorization;
+        this.sessionBodyPrefix = sessionBodyPrefix;
+        this.sessionBodySuffix = sessionBodySuffix;
+    }
+
+    /**
+     * Create the template of verification results requests.
+     *
+     * @param endpoint The CLEAR endpoint
+     * @param apiKey   The CLEAR API Key
+     * @return The request template
+     */
+    static ClearRequestTemplate of(ClearEndpoints.Endpoint endpoint, String apiKey) {
+        return new ClearRequestTemplate(endpoint, authorization(apiKey), null, null);
+    }
+
+    /**
+     * Create the template of create-session and verification results requests.
+     *
+     * @param endpoint    The CLEAR endpoint
+     * @param apiKey      The CLEAR API Key
+     * @param projectId   The CLEAR Project ID
+     * @param redirectUrl The Redirect URL, to which the nonce is appended
+     * @return The request template
+     */
+    static ClearRequestTemplate of(ClearEndpoints.Endpoint endpoint, String apiKey, String projectId,
+                                   String redirectUrl) {
+        String prefix = "{\"project_id\":\"" + escape(projectId) + "\",\"redirect_url\":\""
+                        + escape(redirectUrl + "?nonce=");
+        return new ClearRequestTemplate(endpoint, authorization(apiKey),
+                                        prefix.getBytes(StandardCharsets.UTF_8),
+                                        "\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Build a POST {apiPath}/v1/verification_sessions request.
+     *
+     * @param nonce The Nonce included with the Redirect URL
+     * @return The request
+     */
+    Request createSession(String nonce) {
+        byte[] encodedNonce = nonce.getBytes(StandardCharsets.US_ASCII);
+        byte[] body = new byte[sessionBodyPrefix.length + encodedNonce.length + sessionBodySuffix.length];
+        System.arraycopy(sessionBodyPrefix, 0, body, 0, sessionBodyPrefix.length);
+        System.arraycopy(encodedNonce, 0, body, sessionBodyPrefix.length, encodedNonce.length);
+        System.arraycopy(sessionBodySuffix, 0, body, sessionBodyPrefix.length + encodedNonce.length,
+                         sessionBodySuffix.length);
+
+        Request request = request("POST", endpoint.sessionsUri());
+        request.getEntity().setBytes(body);
+        request.getHeaders().put(ContentTypeHeader.NAME, APPLICATION_JSON);
+        return request;
+    }
+
+    /**
+     * Build a GET {apiPath}/v1/verification_sessions/{verification_session_id} request.
+     *
+     * @param verificationSessionId The CLEAR Verification Session ID
+     * @return The request
+     * @throws IllegalArgumentException When the session ID is not a valid URI path segment
+     */
+    Request getResults(String verificationSessionId) {
+        return request("GET", endpoint.sessionUri(verificationSessionId));
+    }
+
+    private Request request(String method, URI uri) {
+        Request request = new Request().setUri(uri).setMethod(method);
+        request.getHeaders().put(AuthorizationHeader.NAME, authorization);
+        request.getHeaders().put(ACCEPT, ANY);
+        return request;
+    }
+
+    private static String authorization(String apiKey) {
+        return BearerToken.NAME + " " + new BearerToken(apiKey);
+    }
+
+    private static String escape(String value) {
+        return new String(JsonStringEncoder.getInstance().quoteAsString(value));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+
+/**
+ * Short-lived, size bounded cache of CLEAR verification results.
+ * <p>
+ * Lookups for the same key share a single in-flight request, so a replayed redirect or a double submit only
+ * reaches CLEAR once. Failed lookups, and results the caller does not consider cacheable, such as sessions that
+ * are still pending, are only shared while in flight. Callers always receive their own copy of the results,
+ * which allows the cached value to be cleared as soon as its entry expires or is evicted so that the PII it
+ * holds is not retained past the configured window. A caller that cancels its copy, for example because its own
+ * deadline expired, does not cancel the shared request. Expired entries are swept periodically by the owner of the
+ * cache, independently of lookups.
+ * </p>
+ */
+final class ClearResultsCache {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Return the cached results for the key, or load them using the supplied loader.
+     *
+     * @param key       The cache key
+     * @param ttlMillis How long, in milliseconds, results stay cached. A value of zero or less disables caching
+     * @param maxSize   The maximum number of entries to hold
+     * @param cacheable Whether loaded results may be kept once the request has completed
+     * @param loader    Issues the CLEAR request when the key is not cached
+     * @return A promise of a private copy of the verification results
+     */
+    Promise<JsonValue, ClearServiceException> get(String key, long ttlMillis, int maxSize,
+                                                  Predicate<JsonValue> cacheable,
+                                                  Supplier<Promise<JsonValue, ClearServiceException>> loader) {
+        if (ttlMillis <= 0 || maxSize <= 0) {
+            return loader.get();
+        }
+
+        long now = System.currentTimeMillis();
+        Entry[] created = new Entry[1];
+        Entry entry = entries.compute(key, (k, existing) -> {
+            if (existing != null && !existing.isExpired(now)) {
+                return existing;
+            }
+            if (existing != null) {
+                existing.clear();
+            }
+            created[0] = new Entry(loader.get(), now + ttlMillis);
+            return created[0];
+        });
+        if (entry == created[0]) {
+            entry.results.thenOnResultOrException(results -> {
+                if (!cacheable.test(results)) {
+                    entries.remove(key, entry);
+                }
+            }, e -> entries.remove(key, entry));
+            entry.results.thenOnRuntimeException(e -> entries.remove(key, entry));
+        }
+
+        // Take the caller's copy before evicting, as eviction may clear this very entry
+        PromiseImpl<JsonValue, ClearServiceException> copy = PromiseImpl.create();
+        entry.results.thenOnResultOrException(results -> copy.tryHandleResult(results.copy()),
+                                              copy::tryHandleException)
+                     .thenOnRuntimeException(e -> copy.tryHandleException(
+                         new ClearServiceException("Unexpected error: " + e)));
+        if (entries.size() > maxSize) {
+            evict(maxSize);
+        }
+        return copy;
+    }
+
+    /**
+     * Drop and clear expired entries. Called periodically so that results do not outlive their TTL on a server
+     * that sees no further lookups.
+     */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        entries.entrySet().removeIf(e -> {
+            if (e.getValue().isExpired(now)) {
+                e.getValue().clear();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Drop expired entries and, if the cache is still over capacity, as many further entries as required.
+     */
+    private void evict(int maxSize) {
+        sweep();
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            Entry evicted = it.next();
+            it.remove();
+            evicted.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final Promise<JsonValue, ClearServiceException> results;
+        private final long expiresAt;
+
+        private Entry(Promise<JsonValue, ClearServiceException> results, long expiresAt) {
+            this.results = results;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        private void clear() {
+            results.thenOnResult(JsonValue::clear);
+        }
+    }
+}
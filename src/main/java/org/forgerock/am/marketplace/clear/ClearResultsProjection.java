@@ -0,0 +1,209 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.forgerock.json.JsonValue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streams a CLEAR verification results body and keeps only the configured fields.
+ * <p>
+ * Fields are given as JSON pointers, for example {@code /status} or {@code /traits/first_name}, in which {@code ~1}
+ * and {@code ~0} stand for {@code /} and {@code ~} within a member name, as in RFC 6901. Any object member
+ * that is neither selected nor on the way to a selected field is skipped by the parser without being
+ * materialised, so PII that the journey never reads does not reach the heap or the tree state.
+ * </p>
+ */
+final class ClearResultsProjection {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final PathNode root = new PathNode();
+    private final String key;
+
+    private ClearResultsProjection(Collection<String> fields) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String field : fields) {
+            String pointer = field.trim();
+            if (pointer.isEmpty()) {
+                continue;
+            }
+            sorted.add(pointer.startsWith("/") ? pointer : "/" + pointer);
+        }
+        for (String pointer : sorted) {
+            PathNode node = root;
+            for (String segment : pointer.substring(1).split("/")) {
+                node = node.children.computeIfAbsent(unescape(segment), s -> new PathNode());
+            }
+            node.selected = true;
+        }
+        this.key = String.join(",", sorted);
+    }
+
+    /**
+     * Decode a JSON pointer segment, replacing {@code ~1} before {@code ~0} so that {@code ~01} stays {@code ~1}.
+     */
+    private static String unescape(String segment) {
+        if (segment.indexOf('~') < 0) {
+            return segment;
+        }
+        return segment.replace("~1", "/").replace("~0", "~");
+    }
+
+    /**
+     * Compile the configured JSON pointers into a projection.
+     *
+     * @param fields   The JSON pointers of the fields to keep
+     * @param required JSON pointers that are always kept when a projection is applied
+     * @return The projection, or {@code null} when no fields are configured and the full body should be kept
+     */
+    static ClearResultsProjection of(Collection<String> fields, String... required) {
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+        List<String> all = new ArrayList<>(fields);
+        all.addAll(Arrays.asList(required));
+        ClearResultsProjection projection = new ClearResultsProjection(all);
+        return projection.root.children.isEmpty() ? null : projection;
+    }
+
+    /**
+     * A stable representation of the selected fields, suitable for use in cache keys.
+     *
+     * @return The sorted, comma separated JSON pointers
+     */
+    String key() {
+        return key;
+    }
+
+    /**
+     * Parse a verification results body, keeping only the selected fields.
+     *
+     * @param content The response body
+     * @return Json containing the selected fields
+     * @throws IOException When the body is not a JSON object
+     */
+    JsonValue read(InputStream content) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in the CLEAR response");
+            }
+            return json(readObject(parser, root));
+        }
+    }
+
+    /**
+     * Keep only the selected fields of verification results that have already been parsed.
+     *
+     * @param results The verification results
+     * @return Json containing a copy of the selected fields
+     */
+    JsonValue apply(JsonValue results) {
+        return json(project(results, root));
+    }
+
+    private static Map<String, Object> project(JsonValue object, PathNode node) {
+        Map<String, Object> projected = new LinkedHashMap<>();
+        if (!object.isMap()) {
+            return projected;
+        }
+        for (Map.Entry<String, PathNode> child : node.children.entrySet()) {
+            JsonValue value = object.get(child.getKey());
+            if (value.isNull()) {
+                continue;
+            }
+            if (child.getValue().selected) {
+                projected.put(child.getKey(), value.copy().getObject());
+            }
+            else {
+                Map<String, Object> nested = project(value, child.getValue());
+                if (!nested.isEmpty()) {
+                    projected.put(child.getKey(), nested);
+                }
+            }
+        }
+        return projected;
+    }
+
+    private static Map<String, Object> readObject(JsonParser parser, PathNode node) throws IOException {
+        Map<String, Object> object = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            PathNode child = node.children.get(name);
+            if (child != null && child.selected) {
+                object.put(name, readValue(parser, token));
+            }
+            else if (child != null && token == JsonToken.START_OBJECT) {
+                Map<String, Object> nested = readObject(parser, child);
+                if (!nested.isEmpty()) {
+                    object.put(name, nested);
+                }
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+        return object;
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+        case START_OBJECT:
+            Map<String, Object> object = new LinkedHashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                object.put(name, readValue(parser, parser.nextToken()));
+            }
+            return object;
+        case START_ARRAY:
+            List<Object> array = new ArrayList<>();
+            JsonToken element;
+            while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                array.add(readValue(parser, element));
+            }
+            return array;
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+            return parser.getNumberValue();
+        case VALUE_NUMBER_FLOAT:
+            return parser.getDoubleValue();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        case VALUE_NULL:
+            return null;
+        default:
+            throw new IOException("Unexpected token in the CLEAR response: " + token);
+        }
+    }
+
+    private static final class PathNode {
+        private final Map<String, PathNode> children = new HashMap<>();
+        private boolean selected;
+    }
+}
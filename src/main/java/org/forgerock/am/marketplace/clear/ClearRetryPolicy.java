@@ -0,0 +1,262 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+
+/**
+ * Retries and hedging of CLEAR calls.
+ * <p>
+ * Failed attempts are retried with jittered exponential backoff. Idempotent calls are retried after any transient
+ * failure, other calls only when CLEAR cannot have processed the request: the connection was refused, or CLEAR
+ * answered 429 or 503. Idempotent calls may also be hedged, sending a second request once the first has been in
+ * flight for longer than the recent 95th percentile latency and keeping whichever response arrives first.
+ * </p>
+ * <p>
+ * Retries and hedges draw on a shared budget that every call replenishes by a configured percentage, so that
+ * during an outage they add at most that share of extra load on CLEAR.
+ * </p>
+ */
+final class ClearRetryPolicy {
+
+    private static final long MILLI_TOKENS = 1000;
+    private static final long MAX_BUDGET = 10 * MILLI_TOKENS;
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    private final ScheduledExecutorService scheduler;
+    private final ClearMetrics metrics;
+    private final AtomicLong budget = new AtomicLong(MAX_BUDGET);
+
+    /**
+     * Create the retry policy.
+     *
+     * @param scheduler Schedules backoff delays and hedges
+     * @param metrics   The CLEAR metrics
+     */
+    ClearRetryPolicy(ScheduledExecutorService scheduler, ClearMetrics metrics) {
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Run the call, retrying and hedging it as the settings allow.
+     *
+     * @param settings         The retry settings
+     * @param idempotent       Whether the call can safely be repeated after any transient failure
+     * @param deadline         The deadline of the call, no retry is scheduled past it
+     * @param hedgeDelayMillis How long to wait before hedging the call, or a negative value not to hedge it
+     * @param attempt          Issues a single attempt of the call
+     * @return A promise of the CLEAR response
+     */
+    Promise<JsonValue, ClearServiceException> call(Settings settings, boolean idempotent, ClearDeadline deadline,
+                                                   long hedgeDelayMillis,
+                                                   Supplier<Promise<JsonValue, ClearServiceException>> attempt) {
+        if (settings.maxRetries <= 0 && hedgeDelayMillis < 0) {
+            return attempt.get();
+        }
+        deposit(settings.budgetPercent);
+        return attempt(settings, idempotent, deadline, idempotent ? hedgeDelayMillis : -1, attempt, 0);
+    }
+
+    private Promise<JsonValue, ClearServiceException> attempt(
+        Settings settings,
+        boolean idempotent,
+        ClearDeadline deadline,
+        long hedgeDelayMillis,
+        Supplier<Promise<JsonValue, ClearServiceException>> attempt,
+        int retry) {
+        Promise<JsonValue, ClearServiceException> result = hedgeDelayMillis < 0
+                                                           ? attempt.get()
+                                                           : hedge(attempt, hedgeDelayMillis);
+        if (retry > 0) {
+            result = result.thenOnResult(r -> metrics.recordRetryWin());
+        }
+        return result.thenAsync(
+            r -> newResultPromise(r),
+            e -> retry(settings, idempotent, deadline, hedgeDelayMillis, attempt, retry + 1, e));
+    }
+
+    private Promise<JsonValue, ClearServiceException> retry(
+        Settings settings,
+        boolean idempotent,
+        ClearDeadline deadline,
+        long hedgeDelayMillis,
+        Supplier<Promise<JsonValue, ClearServiceException>> attempt,
+        int retry,
+        ClearServiceException failure) {
+        if (retry > settings.maxRetries || !isRetryable(failure, idempotent)) {
+            return newExceptionPromise(failure);
+        }
+        long ceiling = settings.backoffMillis << Math.min(retry - 1, MAX_BACKOFF_SHIFT);
+        long backoff = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        if (deadline.remainingMillis() <= backoff || !withdraw()) {
+            return newExceptionPromise(failure);
+        }
+        PromiseImpl<JsonValue, ClearServiceException> delayed = PromiseImpl.create();
+        try {
+            scheduler.schedule(() -> attempt(settings, idempotent, deadline, hedgeDelayMillis, attempt, retry)
+                                   .thenOnResultOrException(delayed::handleResult, delayed::handleException),
+                               backoff, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            return newExceptionPromise(failure);
+        }
+        metrics.recordRetry();
+        return delayed;
+    }
+
+    /**
+     * Send the attempt, and a second one if the first is still in flight after the delay. The first result wins;
+     * the call fails only once every attempt sent has failed.
+     */
+    private Promise<JsonValue, ClearServiceException> hedge(
+        Supplier<Promise<JsonValue, ClearServiceException>> attempt,
+        long delayMillis) {
+        Promise<JsonValue, ClearServiceException> first = attempt.get();
+        if (first.isDone()) {
+            return first;
+        }
+        PromiseImpl<JsonValue, ClearServiceException> winner = PromiseImpl.create();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        ScheduledFuture<?> hedge;
+        try {
+            hedge = scheduler.schedule(() -> {
+                if (winner.isDone() || !withdraw()
+                    || outstanding.getAndUpdate(count -> count == 0 ? 0 : count + 1) == 0) {
+                    return;
+                }
+                metrics.recordHedge();
+                attempt.get().thenOnResultOrException(
+                    result -> {
+                        if (winner.tryHandleResult(result)) {
+                            metrics.recordHedgeWin();
+                        }
+                    },
+                    e -> complete(outstanding, winner, e));
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            return first;
+        }
+        first.thenOnResultOrException(winner::tryHandleResult, e -> complete(outstanding, winner, e));
+        return winner.thenAlways(() -> hedge.cancel(false));
+    }
+
+    /**
+     * Account for a failed or abandoned attempt, failing the call once no attempt is left in flight.
+     */
+    private static void complete(AtomicInteger outstanding, PromiseImpl<JsonValue, ClearServiceException> winner,
+                                 ClearServiceException failure) {
+        if (outstanding.decrementAndGet() == 0) {
+            winner.tryHandleException(failure);
+        }
+    }
+
+    private static boolean isRetryable(ClearServiceException failure, boolean idempotent) {
+        if (hasCause(failure, ConnectException.class)) {
+            return true;
+        }
+        if (failure instanceof ClearHttpException) {
+            int status = ((ClearHttpException) failure).getStatusCode();
+            return status == 429 || status == 503 || idempotent && failure instanceof ClearServerErrorException;
+        }
+        return idempotent && failure instanceof ClearTimeoutException
+               && hasCause(failure, SocketTimeoutException.class);
+    }
+
+    private static boolean hasCause(Throwable failure, Class<? extends Throwable> type) {
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void deposit(int percent) {
+        long amount = percent * MILLI_TOKENS / 100;
+        budget.getAndUpdate(current -> Math.min(MAX_BUDGET, current + amount));
+    }
+
+    private boolean withdraw() {
+        if (budget.getAndUpdate(current -> current >= MILLI_TOKENS ? current - MILLI_TOKENS : current)
+            >= MILLI_TOKENS) {
+            return true;
+        }
+        metrics.recordRetryBudgetExhausted();
+        return false;
+    }
+
+    /**
+     * The retry settings of a node.
+     */
+    static final class Settings {
+
+        /**
+         * Settings that send a single attempt.
+         */
+        static final Settings DISABLED = new Settings(0, 0, 0, false);
+
+        private final int maxRetries;
+        private final long backoffMillis;
+        private final int budgetPercent;
+        private final boolean hedging;
+
+        /**
+         * Create the retry settings.
+         *
+         * @param maxRetries    The maximum number of retries of a call
+         * @param backoffMillis The backoff, in milliseconds, before the first retry, doubled on each retry
+         * @param budgetPercent The percentage of calls that may be retried or hedged
+         * @param hedging       Whether idempotent calls are hedged
+         */
+        Settings(int maxRetries, long backoffMillis, int budgetPercent, boolean hedging) {
+            this.maxRetries = maxRetries;
+            this.backoffMillis = Math.max(1, backoffMillis);
+            this.budgetPercent = budgetPercent;
+            this.hedging = hedging;
+        }
+
+        /**
+         * Whether idempotent calls are hedged.
+         *
+         * @return True if hedging is enabled
+         */
+        boolean isHedging() {
+            return hedging;
+        }
+
+        /**
+         * Read the retry settings from the node configuration.
+         *
+         * @param config The CLEAR node configuration
+         * @return The retry settings
+         */
+        static Settings of(ClearNode.Config config) {
+            return new Settings(config.maxRetries(), config.retryBackoff(), config.retryBudget(),
+                                config.hedgeToggle());
+        }
+    }
+}
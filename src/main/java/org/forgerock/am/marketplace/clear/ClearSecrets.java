@@ -0,0 +1,229 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.http.protocol.Responses;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.secrets.Secrets;
+import org.forgerock.openam.secrets.SecretsProviderFacade;
+import org.forgerock.secrets.GenericSecret;
+import org.forgerock.secrets.Purpose;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Resolves the secrets shared with CLEAR from AM's secret stores by secret label: the API keys used by the node and
+ * the bulk export, and the key CLEAR signs webhook callbacks with.
+ * <p>
+ * Resolved keys are cached per realm and label. Once the refresh interval, set in seconds through the AM advanced
+ * server property {@value #REFRESH_PROPERTY}, has elapsed the keys are reloaded in the background while callers
+ * keep using the cached keys, so only the first resolution waits on the secret store. If a reload fails the cached
+ * keys are kept until the next refresh.
+ * </p>
+ * <p>
+ * Besides the active key, every other key the secret store still considers valid is kept. While an API key is being
+ * rotated, calls rejected with the active key are retried with the older keys, so journeys that started before the
+ * rotation can complete. Likewise, webhook callbacks signed with any valid key are accepted.
+ * </p>
+ */
+@Singleton
+public class ClearSecrets {
+
+    static final String REFRESH_PROPERTY = "org.forgerock.am.marketplace.clear.secrets.refreshInterval";
+
+    private static final Logger logger = LoggerFactory.getLogger(ClearSecrets.class);
+    private static final String LOGGER_PREFIX = "[ClearSecrets]" + ClearPlugin.LOG_APPENDER;
+    private static final int MAX_ENTRIES = 64;
+
+    private final Secrets secrets;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the resolver on top of AM's secrets API.
+     *
+     * @param secrets The AM secrets API
+     */
+    @Inject
+    public ClearSecrets(Secrets secrets) {
+        this.secrets = secrets;
+    }
+
+    /**
+     * Return the keys mapped to the secret label in the realm, resolving them on first use.
+     *
+     * @param realm The realm whose secret stores hold the keys
+     * @param label The secret label
+     * @return A promise of the keys, already completed unless the keys have not been resolved yet
+     */
+    Promise<Keys, ClearServiceException> get(Realm realm, String label) {
+        String id = realm.asPath() + "|" + label;
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+            entry = entries.computeIfAbsent(id, k -> new Entry(realm, label));
+        }
+        Keys keys = entry.keys;
+        long refreshNanos = TimeUnit.SECONDS.toNanos(SystemProperties.getAsInt(REFRESH_PROPERTY, 60));
+        if (keys == null || System.nanoTime() - entry.loadedAt >= refreshNanos) {
+            Promise<Keys, ClearServiceException> loading = refresh(entry);
+            if (keys == null) {
+                return loading;
+            }
+        }
+        return newResultPromise(keys);
+    }
+
+    private Promise<Keys, ClearServiceException> refresh(Entry entry) {
+        synchronized (entry) {
+            if (entry.loading != null) {
+                return entry.loading;
+            }
+            Promise<Keys, ClearServiceException> loading = load(entry.realm, entry.label)
+                .thenOnResultOrException(keys -> {
+                    Keys previous = entry.keys;
+                    if (previous != null && !previous.active().equals(keys.active())) {
+                        logger.info("{}CLEAR secret {} rotated, {} secrets valid", LOGGER_PREFIX, entry.label,
+                                    keys.all().size());
+                    }
+                    entry.keys = keys;
+                    entry.loadedAt = System.nanoTime();
+                }, e -> {
+                    if (entry.keys != null) {
+                        logger.warn("{}Failed to refresh CLEAR secret {}, keeping the cached secret: {}",
+                                    LOGGER_PREFIX, entry.label, e.getMessage());
+                        entry.loadedAt = System.nanoTime();
+                    }
+                });
+            entry.loading = loading;
+            loading.thenAlways(() -> {
+                synchronized (entry) {
+                    if (entry.loading == loading) {
+                        entry.loading = null;
+                    }
+                }
+            });
+            return loading;
+        }
+    }
+
+    private Promise<Keys, ClearServiceException> load(Realm realm, String label) {
+        Purpose<GenericSecret> purpose;
+        SecretsProviderFacade provider;
+        try {
+            purpose = Purpose.purpose(label, GenericSecret.class);
+            provider = secrets.getRealmSecrets(realm);
+        }
+        catch (RuntimeException e) {
+            return newExceptionPromise(new ClearServiceException("Failed to resolve CLEAR secret " + label + e));
+        }
+        return provider.getActiveSecret(purpose)
+                       .thenAsync(active -> provider.getValidSecrets(purpose)
+                                                    .then(valid -> Keys.of(reveal(active), valid
+                                                              .map(ClearSecrets::reveal)
+                                                              .collect(Collectors.toList())),
+                                                          Responses.noopExceptionFunction()),
+                                  e -> newExceptionPromise(new ClearServiceException(
+                                      "No CLEAR secret found for secret label " + label)));
+    }
+
+    private static String reveal(GenericSecret secret) {
+        return secret.revealAsUtf8(String::new);
+    }
+
+    /**
+     * The keys mapped to a secret label.
+     */
+    static final class Keys {
+
+        private final List<String> all;
+
+        private Keys(List<String> all) {
+            this.all = all;
+        }
+
+        /**
+         * The keys of a single configured key.
+         *
+         * @param key The key
+         * @return The keys
+         */
+        static Keys of(String key) {
+            return new Keys(Collections.singletonList(key));
+        }
+
+        /**
+         * The active key followed by the other valid keys.
+         *
+         * @param active The active key
+         * @param valid  Every valid key, which may include the active key
+         * @return The keys
+         */
+        static Keys of(String active, List<String> valid) {
+            List<String> all = new ArrayList<>(valid.size() + 1);
+            all.add(active);
+            for (String key : valid) {
+                if (!all.contains(key)) {
+                    all.add(key);
+                }
+            }
+            return new Keys(Collections.unmodifiableList(all));
+        }
+
+        /**
+         * The key to use for new calls.
+         *
+         * @return The active key
+         */
+        String active() {
+            return all.get(0);
+        }
+
+        /**
+         * The active key followed by the keys that are still valid during a rotation.
+         *
+         * @return The keys
+         */
+        List<String> all() {
+            return all;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Realm realm;
+        private final String label;
+        private volatile Keys keys;
+        private volatile long loadedAt;
+        private Promise<Keys, ClearServiceException> loading;
+
+        private Entry(Realm realm, String label) {
+            this.realm = realm;
+            this.label = label;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+/**
+ * CLEAR, or the connection to it, failed with a 5xx status.
+ */
+public class ClearServerErrorException extends ClearHttpException {
+
+    /**
+     * Exception constructor with error message.
+     *
+     * @param message    The error message.
+     * @param statusCode The HTTP status code of the response.
+     * @param cause      The cause, or null.
+     */
+    public ClearServerErrorException(String message, int statusCode, Throwable cause) {
+        super(message, statusCode, cause);
+    }
+}
@@ -1,16 +1,51 @@
 package org.forgerock.am.marketplace.clear;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Clear Exception.
+ * <p>
+ * Subclasses describe the expected failures of a CLEAR call. They, and the failures reported with this class, are
+ * raised for every failed journey during a CLEAR outage, so they capture a stack trace at most once per second.
+ * </p>
  */
 public class ClearServiceException extends Exception {
 
+    private static final long STACK_TRACE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final AtomicLong NEXT_STACK_TRACE = new AtomicLong(System.nanoTime());
+
     /**
-     * Exception constructor with error message.
+     * Exception constructor with error message, whose stack trace is only captured when sampled.
      *
      * @param message The error message.
      */
     public ClearServiceException(String message) {
-        super(message);
+        this(message, null);
+    }
+
+    /**
+     * Exception constructor with error message and cause, whose stack trace is only captured when sampled.
+     *
+     * @param message The error message.
+     * @param cause   The cause, or null.
+     */
+    protected ClearServiceException(String message, Throwable cause) {
+        super(message, cause, true, sampleStackTrace());
+    }
+
+    /**
+     * Whether this exception captured its stack trace.
+     *
+     * @return True if the stack trace was captured.
+     */
+    public boolean hasStackTrace() {
+        return getStackTrace().length > 0;
+    }
+
+    private static boolean sampleStackTrace() {
+        long now = System.nanoTime();
+        long next = NEXT_STACK_TRACE.get();
+        return now - next >= 0 && NEXT_STACK_TRACE.compareAndSet(next, now + STACK_TRACE_INTERVAL_NANOS);
     }
-}
\ No newline at end of file
+}
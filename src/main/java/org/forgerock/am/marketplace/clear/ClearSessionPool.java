@@ -0,0 +1,263 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pools of verification sessions created ahead of the journeys that use them, so that the first leg of the CLEAR
+ * node can redirect to CLEAR without waiting on a create-session call.
+ * <p>
+ * Each pooled session is created with its own nonce in its Redirect URL, which is handed to the journey together
+ * with the session. A session is only handed out once and the nonce is as unguessable as a per-journey nonce, so
+ * the return leg checks it exactly as it checks the nonce of an inline created session.
+ * </p>
+ * <p>
+ * Sessions older than the pool TTL are discarded rather than handed out. Each time a session is taken, or found
+ * missing, the pool is topped up in the background with non-blocking create-session calls.
+ * </p>
+ * <p>
+ * Pools are keyed by a digest of the API key rather than the key itself. At most sixteen pools are
+ * kept, the least recently used pool without create-session calls in flight making room for a new one, so that no
+ * session still being created is orphaned. While every pool is being topped up, no pool is created and the node
+ * creates its sessions inline.
+ * </p>
+ */
+@Singleton
+public class ClearSessionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClearSessionPool.class);
+    private static final String LOGGER_PREFIX = "[ClearSessionPool]" + ClearPlugin.LOG_APPENDER;
+    private static final int MAX_POOLS = 16;
+
+    private final ClearClient client;
+    private final ClearMetrics metrics;
+    private final Map<List<Object>, Pool> pools = new LinkedHashMap<>(MAX_POOLS, 0.75f, true);
+
+    /**
+     * Creates the session pools on top of the CLEAR client.
+     *
+     * @param client  The CLEAR client
+     * @param metrics The CLEAR metrics
+     */
+    @Inject
+    public ClearSessionPool(ClearClient client, ClearMetrics metrics) {
+        this.client = client;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Take a pre-created session for the node configuration and top the pool up.
+     *
+     * @param config The CLEAR node configuration
+     * @param apiKey The CLEAR API Key
+     * @return The session, or null when none is available
+     */
+    Session take(ClearNode.Config config, String apiKey) {
+        Pool pool = pool(Arrays.asList(digest(apiKey), config.projectId(), config.redirectUrl(), config.apiUrls()));
+        if (pool == null) {
+            metrics.recordSessionPoolMiss();
+            return null;
+        }
+
+        long maxAge = TimeUnit.SECONDS.toMillis(config.sessionPoolTtl());
+        Session session = pool.poll(System.currentTimeMillis() - maxAge);
+        if (session == null) {
+            metrics.recordSessionPoolMiss();
+        }
+        else {
+            metrics.recordSessionPoolHit();
+        }
+        refill(pool, config, apiKey);
+        return session;
+    }
+
+    /**
+     * Find the pool for the key, making room for a new pool by evicting the least recently used idle one.
+     *
+     * @return The pool, or null when it does not exist and every pool has create-session calls in flight
+     */
+    private synchronized Pool pool(List<Object> key) {
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            if (pools.size() >= MAX_POOLS && !evictIdle()) {
+                return null;
+            }
+            pool = new Pool();
+            pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    private boolean evictIdle() {
+        Iterator<Pool> leastRecentlyUsed = pools.values().iterator();
+        while (leastRecentlyUsed.hasNext()) {
+            if (leastRecentlyUsed.next().isIdle()) {
+                leastRecentlyUsed.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String digest(String apiKey) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(sha256.digest(apiKey.getBytes(UTF_8)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void refill(Pool pool, ClearNode.Config config, String apiKey) {
+        int missing = pool.reserve(config.sessionPoolSize());
+        for (int i = 0; i < missing; i++) {
+            long createdAt = System.currentTimeMillis();
+            String nonce = ClearNonces.generate();
+            client.createVerificationSessionAsync(config, apiKey, nonce)
+                  .thenOnResultOrException(
+                      response -> pool.add(Session.of(response, nonce, createdAt)),
+                      e -> {
+                          pool.release();
+                          logger.debug("{}Failed to pre-create a verification session: {}", LOGGER_PREFIX,
+                                       e.getMessage());
+                      })
+                  .thenOnRuntimeException(e -> pool.release());
+        }
+    }
+
+    /**
+     * The sessions pre-created for one node configuration.
+     */
+    private final class Pool {
+
+        private final Deque<Session> sessions = new ArrayDeque<>();
+        private int creating;
+
+        /**
+         * Take the oldest session created after the given time, discarding older ones.
+         */
+        synchronized Session poll(long createdAfter) {
+            Session session;
+            while ((session = sessions.pollFirst()) != null) {
+                if (session.createdAt > createdAfter) {
+                    return session;
+                }
+                metrics.recordSessionPoolExpired();
+            }
+            return null;
+        }
+
+        /**
+         * Reserve room for the sessions needed to fill the pool up to its size.
+         */
+        synchronized int reserve(int size) {
+            int missing = Math.max(0, size - sessions.size() - creating);
+            creating += missing;
+            return missing;
+        }
+
+        synchronized void add(Session session) {
+            creating--;
+            sessions.addLast(session);
+        }
+
+        synchronized void release() {
+            creating--;
+        }
+
+        /**
+         * Whether no session is being created for the pool.
+         */
+        synchronized boolean isIdle() {
+            return creating == 0;
+        }
+    }
+
+    /**
+     * A created verification session and the nonce in its Redirect URL.
+     */
+    static final class Session {
+
+        private static final String VERIFICATION_SESSION_ID = "id";
+        private static final String VERIFICATION_SESSION_TOKEN = "token";
+
+        private final String id;
+        private final String token;
+        private final String nonce;
+        private final long createdAt;
+
+        private Session(String id, String token, String nonce, long createdAt) {
+            this.id = id;
+            this.token = token;
+            this.nonce = nonce;
+            this.createdAt = createdAt;
+        }
+
+        /**
+         * Read the session from a create-session response.
+         *
+         * @param response  The create-session response
+         * @param nonce     The nonce included with the Redirect URL
+         * @param createdAt The time, in milliseconds since the epoch, at which the session was created
+         * @return The session
+         */
+        static Session of(JsonValue response, String nonce, long createdAt) {
+            return new Session(response.get(VERIFICATION_SESSION_ID).asString(),
+                               response.get(VERIFICATION_SESSION_TOKEN).asString(), nonce, createdAt);
+        }
+
+        /**
+         * The {@code verification_session.id}, identifying the session the results are retrieved for.
+         *
+         * @return The CLEAR Verification Session ID
+         */
+        String id() {
+            return id;
+        }
+
+        /**
+         * The {@code verification_session.token}, used in the redirect to CLEAR's verification UI.
+         *
+         * @return The CLEAR Verification Session token
+         */
+        String token() {
+            return token;
+        }
+
+        /**
+         * The nonce included with the Redirect URL of the session.
+         *
+         * @return The nonce
+         */
+        String nonce() {
+            return nonce;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.util.Set;
+
+import com.sun.identity.sm.ServiceAttributeValidator;
+
+/**
+ * Validates that configured CLEAR URLs are absolute http or https URLs, so that they are rejected when the node
+ * is saved rather than on the first journey.
+ */
+public class ClearUrlValidator implements ServiceAttributeValidator {
+
+    @Override
+    public boolean validate(Set<String> values) {
+        if (values == null || values.isEmpty()) {
+            return false;
+        }
+        try {
+            for (String value : values) {
+                ClearEndpoints.parse(value);
+            }
+            return true;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.header.ContentLengthHeader;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Receives CLEAR's session-completed webhook and stores the pushed verification results, so that the return leg of
+ * the CLEAR node can complete without calling CLEAR.
+ * <p>
+ * Each callback must carry an HMAC-SHA256 of its body, hex encoded and optionally prefixed with {@code sha256=},
+ * in the {@value #SIGNATURE_HEADER} header. The key is read from the root realm's secret stores, under the secret
+ * label set by the AM advanced server property {@value #SECRET_LABEL_PROPERTY}. Every secret still mapped to the
+ * label is accepted, so the key can be rotated without dropping callbacks. The endpoint rejects every callback
+ * while no secret is mapped.
+ * </p>
+ * <p>
+ * Bodies larger than the advanced server property {@value #MAX_BODY_SIZE_PROPERTY}, in bytes, are rejected before
+ * they are read in full.
+ * </p>
+ */
+@Singleton
+public class ClearWebhookHandler implements Handler {
+
+    static final String SECRET_LABEL_PROPERTY = "org.forgerock.am.marketplace.clear.webhook.secretLabel";
+    static final String MAX_BODY_SIZE_PROPERTY = "org.forgerock.am.marketplace.clear.webhook.maxBodySize";
+    static final String DEFAULT_SECRET_LABEL = "am.authentication.nodes.clear.webhook";
+    static final String SIGNATURE_HEADER = "X-Clear-Signature";
+
+    private static final Logger logger = LoggerFactory.getLogger(ClearWebhookHandler.class);
+    private static final String LOGGER_PREFIX = "[ClearWebhookHandler]" + ClearPlugin.LOG_APPENDER;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String SIGNATURE_PREFIX = "sha256=";
+
+    private final ClearWebhookStore store;
+    private final ClearSecrets secrets;
+
+    /**
+     * Creates the webhook handler.
+     *
+     * @param store   The store the pushed verification results are written to
+     * @param secrets Resolves the webhook signing key
+     */
+    @Inject
+    public ClearWebhookHandler(ClearWebhookStore store, ClearSecrets secrets) {
+        this.store = store;
+        this.secrets = secrets;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+        if (!"POST".equals(request.getMethod())) {
+            return newResultPromise(new Response(Status.METHOD_NOT_ALLOWED));
+        }
+        String label = SystemProperties.get(SECRET_LABEL_PROPERTY, DEFAULT_SECRET_LABEL);
+        return secrets.get(Realm.root(), label)
+                      .then(keys -> receive(request, keys.all()),
+                            e -> {
+                                logger.debug("{}Webhook disabled: {}", LOGGER_PREFIX, e.getMessage());
+                                return new Response(Status.NOT_FOUND);
+                            });
+    }
+
+    private Response receive(Request request, List<String> keys) {
+        int maxBodySize = SystemProperties.getAsInt(MAX_BODY_SIZE_PROPERTY, 65536);
+        try {
+            if (ContentLengthHeader.valueOf(request).getLength() > maxBodySize) {
+                return new Response(Status.PAYLOAD_TOO_LARGE);
+            }
+            byte[] body = readBody(request, maxBodySize);
+            if (body == null) {
+                return new Response(Status.PAYLOAD_TOO_LARGE);
+            }
+            String signature = request.getHeaders().getFirst(SIGNATURE_HEADER);
+            if (keys.stream().noneMatch(key -> isSignatureValid(key, body, signature))) {
+                logger.warn("{}Rejected a webhook callback with an invalid signature", LOGGER_PREFIX);
+                return new Response(Status.UNAUTHORIZED);
+            }
+
+            request.getEntity().setBytes(body);
+            JsonValue results = json(request.getEntity().getJson());
+            String verificationSessionId = results.get("id").asString();
+            if (verificationSessionId == null) {
+                return new Response(Status.BAD_REQUEST);
+            }
+            store.put(verificationSessionId, results);
+            return new Response(Status.NO_CONTENT);
+        }
+        catch (IOException | RuntimeException e) {
+            // Anonymous callers can send anything, so a stack trace is not worth logging
+            logger.warn("{}Unable to read a webhook callback: {}", LOGGER_PREFIX, e.toString());
+            return new Response(Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Read the body, giving up as soon as it is larger than the maximum size.
+     *
+     * @return The body, or null when it is too large
+     */
+    private static byte[] readBody(Request request, int maxBodySize) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = request.getEntity().getRawContentInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (body.size() + read > maxBodySize) {
+                    return null;
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static boolean isSignatureValid(String secret, byte[] body, String signature) {
+        if (signature == null) {
+            return false;
+        }
+        if (signature.startsWith(SIGNATURE_PREFIX)) {
+            signature = signature.substring(SIGNATURE_PREFIX.length());
+        }
+        byte[] actual = decodeHex(signature.trim());
+        if (actual == null) {
+            return false;
+        }
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(UTF_8), MAC_ALGORITHM));
+            return MessageDigest.isEqual(mac.doFinal(body), actual);
+        }
+        catch (GeneralSecurityException e) {
+            logger.error(LOGGER_PREFIX + "Unable to verify a webhook signature", e);
+            return false;
+        }
+    }
+
+    private static byte[] decodeHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.openam.http.HttpRoute.newHttpRoute;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.forgerock.http.routing.RoutingMode;
+import org.forgerock.openam.http.HttpRoute;
+import org.forgerock.openam.http.HttpRouteProvider;
+
+import com.google.inject.Key;
+
+/**
+ * Registers the {@link ClearWebhookHandler} at {@code /clear/webhook} and the {@link ClearExportHandler} at
+ * {@code /clear/export} under the AM context path.
+ */
+public class ClearWebhookRouteProvider implements HttpRouteProvider {
+
+    @Override
+    public Set<HttpRoute> get() {
+        Set<HttpRoute> routes = new HashSet<>();
+        routes.add(newHttpRoute(RoutingMode.EQUALS, "clear/webhook", Key.get(ClearWebhookHandler.class)));
+        routes.add(newHttpRoute(RoutingMode.EQUALS, "clear/export", Key.get(ClearExportHandler.class)));
+        return routes;
+    }
+}
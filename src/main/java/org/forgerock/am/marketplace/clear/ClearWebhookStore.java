@@ -0,0 +1,95 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import org.forgerock.json.JsonValue;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Bounded store of verification results pushed by CLEAR's session-completed webhook, keyed by verification
+ * session ID.
+ * <p>
+ * Results are handed out at most once and are cleared when taken, when they expire or when they are evicted to
+ * make room, so the PII they hold is kept no longer than needed. The store is sized through the AM advanced server
+ * properties {@value #SIZE_PROPERTY} and {@value #TTL_PROPERTY}, the latter in seconds.
+ * </p>
+ */
+@Singleton
+public class ClearWebhookStore {
+
+    static final String SIZE_PROPERTY = "org.forgerock.am.marketplace.clear.webhook.storeSize";
+    static final String TTL_PROPERTY = "org.forgerock.am.marketplace.clear.webhook.ttl";
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Store the results pushed for a verification session, replacing any earlier results.
+     *
+     * @param verificationSessionId The CLEAR Verification Session ID
+     * @param results               The verification results
+     */
+    synchronized void put(String verificationSessionId, JsonValue results) {
+        long now = System.currentTimeMillis();
+        long ttl = TimeUnit.SECONDS.toMillis(SystemProperties.getAsInt(TTL_PROPERTY, 300));
+        Entry previous = entries.remove(verificationSessionId);
+        if (previous != null) {
+            previous.results.clear();
+        }
+        entries.put(verificationSessionId, new Entry(results, now + ttl));
+        evict(now, SystemProperties.getAsInt(SIZE_PROPERTY, 10000));
+    }
+
+    /**
+     * Remove and return the results pushed for a verification session.
+     *
+     * @param verificationSessionId The CLEAR Verification Session ID
+     * @return The verification results, or null if none were pushed or they have expired
+     */
+    synchronized JsonValue take(String verificationSessionId) {
+        Entry entry = entries.remove(verificationSessionId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entry.results.clear();
+            return null;
+        }
+        return entry.results;
+    }
+
+    private void evict(long now, int maxSize) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entries.size() <= maxSize && entry.expiresAt > now) {
+                break;
+            }
+            it.remove();
+            entry.results.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final JsonValue results;
+        private final long expiresAt;
+
+        private Entry(JsonValue results, long expiresAt) {
+            this.results = results;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.forgerock.http.util.Json;
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ClearBulkExportTest {
+
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final ClearClient client = mock(ClearClient.class);
+    private final ClearEndpoints endpoints = ClearEndpoints.of(Collections.singleton("https://clear.example.com"));
+
+    @BeforeEach
+    void setUp() {
+        when(client.exportUserVerificationResultsAsync(any(), anyBoolean(), anyString(), anyString(), any(), any()))
+            .thenAnswer(i -> results(i.getArgument(3)));
+    }
+
+    @Test
+    void writesEveryResultAndTheFinalCheckpoint() throws Exception {
+        List<JsonValue> lines = run(export(4, 0), sessionIds(3));
+
+        assertEquals(Arrays.asList("session-0", "session-1", "session-2"), ids(lines));
+        assertEquals("success", lines.get(0).get("results").get("status").asString());
+        assertProgress(lines.get(3), 3, 0, 3);
+    }
+
+    @Test
+    void writesFailuresAndMovesTheCheckpointPastThem() throws Exception {
+        when(client.exportUserVerificationResultsAsync(any(), anyBoolean(), anyString(), eq("session-1"), any(),
+                                                       any()))
+            .thenReturn(newExceptionPromise(new ClearServerErrorException("unavailable", 503, null)));
+
+        List<JsonValue> lines = run(export(1, 0), sessionIds(3));
+
+        assertEquals("unavailable", lines.get(1).get("error").asString());
+        assertProgress(lines.get(3), 3, 1, 3);
+    }
+
+    @Test
+    void resumesFromTheCheckpoint() throws Exception {
+        List<JsonValue> lines = run(export(4, 2), sessionIds(5));
+
+        assertEquals(Arrays.asList("session-2", "session-3", "session-4"), ids(lines));
+        assertProgress(lines.get(3), 3, 0, 5);
+        verify(client, never()).exportUserVerificationResultsAsync(any(), anyBoolean(), anyString(),
+                                                                   eq("session-0"), any(), any());
+        verify(client, never()).exportUserVerificationResultsAsync(any(), anyBoolean(), anyString(),
+                                                                   eq("session-1"), any(), any());
+    }
+
+    @Test
+    void holdsTheCheckpointAtTheOldestSessionInFlight() throws Exception {
+        PromiseImpl<JsonValue, ClearServiceException> first = PromiseImpl.create();
+        String last = "session-" + (PROGRESS_INTERVAL + 1);
+        when(client.exportUserVerificationResultsAsync(any(), anyBoolean(), anyString(), eq("session-0"), any(),
+                                                       any()))
+            .thenReturn(first);
+        // The first session only completes once the progress line after PROGRESS_INTERVAL others has been written
+        when(client.exportUserVerificationResultsAsync(any(), anyBoolean(), anyString(), eq(last), any(), any()))
+            .thenAnswer(i -> {
+                first.handleResult(json(object(field("id", "session-0"), field("status", "success"))));
+                return results(last);
+            });
+
+        List<JsonValue> lines = run(export(2, 0), sessionIds(PROGRESS_INTERVAL + 2));
+
+        List<JsonValue> progress = lines.stream()
+                                        .filter(line -> line.isDefined("progress"))
+                                        .collect(Collectors.toList());
+        assertEquals(2, progress.size());
+        assertProgress(progress.get(0), PROGRESS_INTERVAL, 0, 0);
+        assertProgress(progress.get(1), PROGRESS_INTERVAL + 2, 0, PROGRESS_INTERVAL + 2);
+    }
+
+    private ClearBulkExport export(int concurrency, long checkpoint) {
+        return new ClearBulkExport(client, endpoints, true, "api-key", null, concurrency, 0, 1000, checkpoint);
+    }
+
+    private static List<JsonValue> run(ClearBulkExport export, List<String> sessionIds) throws Exception {
+        StringWriter output = new StringWriter();
+        export.run(sessionIds, output);
+        List<JsonValue> lines = new ArrayList<>();
+        for (String line : output.toString().split("\n")) {
+            lines.add(parse(line));
+        }
+        return lines;
+    }
+
+    private static JsonValue parse(String line) throws IOException {
+        return json(Json.readJson(line));
+    }
+
+    private static void assertProgress(JsonValue line, long processed, long failed, long checkpoint) {
+        JsonValue progress = line.get("progress");
+        assertEquals(processed, progress.get("processed").asLong());
+        assertEquals(failed, progress.get("failed").asLong());
+        assertEquals(checkpoint, progress.get("checkpoint").asLong());
+    }
+
+    private static List<String> ids(List<JsonValue> lines) {
+        return lines.stream()
+                    .filter(line -> line.isDefined("id"))
+                    .map(line -> line.get("id").asString())
+                    .collect(Collectors.toList());
+    }
+
+    private static List<String> sessionIds(int count) {
+        List<String> sessionIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sessionIds.add("session-" + i);
+        }
+        return sessionIds;
+    }
+
+    private static Promise<JsonValue, ClearServiceException> results(String sessionId) {
+        return newResultPromise(json(object(field("id", sessionId), field("status", "success"))));
+    }
+}
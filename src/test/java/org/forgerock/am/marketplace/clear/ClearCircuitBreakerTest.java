@@ -0,0 +1,149 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.junit.jupiter.api.Test;
+
+class ClearCircuitBreakerTest {
+
+    private static final JsonValue RESULTS = json(object(field("status", "success")));
+
+    private final ClearCircuitBreaker breaker = new ClearCircuitBreaker("test");
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void opensOnceTheFailureRateIsReached() {
+        ClearCircuitBreaker.Settings settings = settings(4, 60_000, 10);
+        failCalls(settings, 4, new ClearServerErrorException("error", 500, null));
+
+        assertEquals(ClearCircuitBreaker.State.OPEN, breaker.getState());
+        assertThrows(ClearCircuitOpenException.class, breaker.call(settings, this::succeed)::getOrThrow);
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    void staysClosedBeforeTheWindowIsFull() {
+        ClearCircuitBreaker.Settings settings = settings(4, 60_000, 10);
+        failCalls(settings, 3, new ClearServerErrorException("error", 500, null));
+
+        assertEquals(ClearCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void ignoresClientErrors() {
+        ClearCircuitBreaker.Settings settings = settings(4, 60_000, 10);
+        failCalls(settings, 4, new ClearClientErrorException("rejected", 404, null));
+
+        assertEquals(ClearCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void countsRuntimeExceptionsAsFailures() {
+        ClearCircuitBreaker.Settings settings = settings(2, 60_000, 10);
+        for (int i = 0; i < 2; i++) {
+            PromiseImpl<JsonValue, ClearServiceException> pending = PromiseImpl.create();
+            breaker.call(settings, () -> pending);
+            pending.handleRuntimeException(new IllegalStateException("bug"));
+        }
+
+        assertEquals(ClearCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void closesAfterASuccessfulTrialCall() throws Exception {
+        ClearCircuitBreaker.Settings settings = settings(2, 0, 10);
+        failCalls(settings, 2, new ClearServerErrorException("error", 500, null));
+        assertEquals(ClearCircuitBreaker.State.OPEN, breaker.getState());
+
+        assertEquals(RESULTS, breaker.call(settings, this::succeed).getOrThrow());
+        assertEquals(ClearCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void reopensAfterAFailedTrialCall() {
+        ClearCircuitBreaker.Settings settings = settings(2, 0, 10);
+        failCalls(settings, 3, new ClearServerErrorException("error", 500, null));
+
+        assertEquals(ClearCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void onlyTheTrialCallDecidesTheTrial() {
+        ClearCircuitBreaker.Settings settings = settings(2, 0, 10);
+        PromiseImpl<JsonValue, ClearServiceException> late = PromiseImpl.create();
+        breaker.call(settings, () -> late);
+        failCalls(settings, 2, new ClearServerErrorException("error", 500, null));
+        assertEquals(ClearCircuitBreaker.State.OPEN, breaker.getState());
+        PromiseImpl<JsonValue, ClearServiceException> trial = PromiseImpl.create();
+        breaker.call(settings, () -> trial);
+
+        late.handleResult(RESULTS);
+
+        assertEquals(ClearCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertThrows(ClearCircuitOpenException.class, breaker.call(settings, this::succeed)::getOrThrow);
+
+        trial.handleException(new ClearServerErrorException("error", 500, null));
+
+        assertEquals(ClearCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void rejectsCallsAboveTheConcurrencyLimit() throws Exception {
+        ClearCircuitBreaker.Settings settings = settings(4, 60_000, 1);
+        PromiseImpl<JsonValue, ClearServiceException> pending = PromiseImpl.create();
+        Promise<JsonValue, ClearServiceException> first = breaker.call(settings, () -> pending);
+
+        assertThrows(ClearCircuitOpenException.class, breaker.call(settings, this::succeed)::getOrThrow);
+
+        pending.handleResult(RESULTS);
+        assertEquals(RESULTS, first.getOrThrow());
+        assertEquals(RESULTS, breaker.call(settings, this::succeed).getOrThrow());
+    }
+
+    @Test
+    void passesCallsThroughWhenDisabled() throws Exception {
+        failCalls(ClearCircuitBreaker.Settings.DISABLED, 10, new ClearServerErrorException("error", 500, null));
+
+        assertEquals(RESULTS, breaker.call(ClearCircuitBreaker.Settings.DISABLED, this::succeed).getOrThrow());
+        assertEquals(ClearCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private void failCalls(ClearCircuitBreaker.Settings settings, int count, ClearServiceException failure) {
+        for (int i = 0; i < count; i++) {
+            breaker.call(settings, () -> {
+                calls.incrementAndGet();
+                return newExceptionPromise(failure);
+            });
+        }
+    }
+
+    private Promise<JsonValue, ClearServiceException> succeed() {
+        calls.incrementAndGet();
+        return newResultPromise(RESULTS);
+    }
+
+    private static ClearCircuitBreaker.Settings settings(int windowSize, long openDurationMillis,
+                                                         int maxConcurrentCalls) {
+        return new ClearCircuitBreaker.Settings(true, 50, 60_000, windowSize, openDurationMillis,
+                                                maxConcurrentCalls);
+    }
+}
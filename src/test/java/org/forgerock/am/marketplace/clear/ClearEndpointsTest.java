@@ -0,0 +1,191 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class ClearEndpointsTest {
+
+    private static final String FAST = "https://a.clear.example.com";
+    private static final String SLOW = "https://b.clear.example.com";
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int MIN_SAMPLES = 8;
+    private static final int SAMPLES = 16;
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+    private final ClearEndpoints endpoints = ClearEndpoints.of(Arrays.asList(SLOW + "/", FAST), now::get);
+    private final ClearEndpoints.Endpoint fast = endpoint(FAST);
+    private final ClearEndpoints.Endpoint slow = endpoint(SLOW);
+
+    @Test
+    void normalisesAndSortsTheUrls() {
+        assertEquals(FAST + "," + SLOW, endpoints.key());
+        assertEquals(SLOW + "/v1/verification_sessions/", slow.sessionsUri().toString());
+        assertEquals(SLOW + "/v1/verification_sessions/session-1", slow.sessionUri("session-1").toString());
+    }
+
+    @Test
+    void rejectsInvalidUrls() {
+        assertThrows(IllegalArgumentException.class, () -> ClearEndpoints.of(Collections.emptyList()));
+        assertThrows(IllegalArgumentException.class,
+                     () -> ClearEndpoints.of(Collections.singleton("ftp://clear.example.com")));
+        assertThrows(IllegalArgumentException.class, () -> ClearEndpoints.of(Collections.singleton("/v1")));
+    }
+
+    @Test
+    void expectsNoLatencyUntilEnoughSuccesses() {
+        for (int i = 1; i < MIN_SAMPLES; i++) {
+            call(fast, 100, false);
+        }
+        assertEquals(0, fast.expectedLatencyMillis());
+
+        call(fast, 100, false);
+
+        assertEquals(100, fast.expectedLatencyMillis());
+    }
+
+    @Test
+    void expectsTheMedianOfRecentSuccesses() {
+        for (int i = 1; i < MIN_SAMPLES; i++) {
+            call(fast, 100, false);
+        }
+        call(fast, 5000, false);
+        assertEquals(100, fast.expectedLatencyMillis());
+
+        for (int i = 0; i < SAMPLES; i++) {
+            call(fast, 20, false);
+        }
+        assertEquals(20, fast.expectedLatencyMillis());
+    }
+
+    @Test
+    void ignoresFailuresInTheExpectedLatency() {
+        for (int i = 0; i < MIN_SAMPLES; i++) {
+            call(fast, 100, false);
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            call(fast, 3000, true);
+        }
+
+        assertEquals(100, fast.expectedLatencyMillis());
+        assertTrue(fast.canComplete(ClearDeadline.after(500)));
+    }
+
+    @Test
+    void canCompleteWhenTheMedianFitsTheDeadline() {
+        for (int i = 0; i < MIN_SAMPLES; i++) {
+            call(fast, 200, false);
+        }
+
+        assertTrue(fast.canComplete(ClearDeadline.after(10000)));
+        assertFalse(fast.canComplete(ClearDeadline.after(100)));
+    }
+
+    @Test
+    void canCompleteBeforeAnyMeasurement() {
+        assertTrue(fast.canComplete(ClearDeadline.after(1000)));
+    }
+
+    @Test
+    void neverCallsPastTheDeadline() {
+        now.addAndGet(PROBE_INTERVAL_NANOS);
+
+        assertFalse(fast.canComplete(ClearDeadline.after(0)));
+    }
+
+    @Test
+    void letsOneProbeThroughPerInterval() {
+        for (int i = 0; i < MIN_SAMPLES; i++) {
+            call(slow, 2000, false);
+        }
+        assertFalse(slow.canComplete(ClearDeadline.after(500)));
+
+        now.addAndGet(PROBE_INTERVAL_NANOS);
+
+        assertTrue(slow.canComplete(ClearDeadline.after(500)));
+        assertFalse(slow.canComplete(ClearDeadline.after(500)));
+    }
+
+    @Test
+    void recoversFromALockoutThroughProbes() {
+        for (int i = 0; i < SAMPLES; i++) {
+            call(slow, 2000, false);
+        }
+
+        // Journeys with a short budget skip the endpoint, only the probes measure that it has become fast
+        int probes = 0;
+        while (!slow.canComplete(ClearDeadline.after(500))) {
+            now.addAndGet(PROBE_INTERVAL_NANOS);
+            assertTrue(slow.canComplete(ClearDeadline.after(500)));
+            call(slow, 10, false);
+            probes++;
+        }
+
+        assertEquals(SAMPLES / 2 + 1, probes);
+        assertEquals(10, slow.expectedLatencyMillis());
+    }
+
+    @Test
+    void prefersEndpointsThatWereNotCalledYet() {
+        call(fast, 10, false);
+
+        assertSame(slow, endpoints.select(e -> true));
+    }
+
+    @Test
+    void weightsTheSelectionByLatency() {
+        call(fast, 10, false);
+        call(slow, 1000, false);
+
+        int fastSelections = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (endpoints.select(e -> true) == fast) {
+                fastSelections++;
+            }
+        }
+
+        assertTrue(fastSelections > 950, fastSelections + " of 1000 selections");
+    }
+
+    @Test
+    void skipsUnavailableEndpoints() {
+        call(fast, 10, false);
+        call(slow, 1000, false);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(slow, endpoints.select(e -> e != fast));
+        }
+    }
+
+    @Test
+    void selectsTheFirstEndpointWhenNoneIsAvailable() {
+        assertSame(fast, endpoints.select(e -> false));
+    }
+
+    private ClearEndpoints.Endpoint endpoint(String url) {
+        return endpoints.select(e -> e.sessionsUri().toString().startsWith(url));
+    }
+
+    private void call(ClearEndpoints.Endpoint endpoint, long millis, boolean failed) {
+        long start = now.get();
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        endpoint.recordLatency(start, failed);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.util.Collections.singletonList;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.NodeState;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.authentication.callbacks.PollingWaitCallback;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.util.i18n.PreferredLocales;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Drives a single journey through the CLEAR node, with a mocked {@link TreeContext} per request and a mocked
+ * {@link NodeState} backed by a map that lives for the whole journey.
+ */
+final class ClearJourney {
+
+    private static final String NONCE = "nonce";
+    private static final String SESSION_ID = "sessionId";
+    private static final int MAX_POLLS = 100;
+
+    private final Map<String, Object> state = new HashMap<>();
+    private final NodeState nodeState = nodeState(state);
+
+    /**
+     * A node configuration calling the given CLEAR API with the default settings.
+     *
+     * @param url The base URL of the CLEAR API
+     * @return The node configuration
+     */
+    static ClearNode.Config config(String url) {
+        return config(url, 1000);
+    }
+
+    /**
+     * A node configuration calling the given CLEAR API with the default settings, except for polling.
+     *
+     * @param url                   The base URL of the CLEAR API
+     * @param pollingIntervalMillis The wait, in milliseconds, before the first poll of a pending session
+     * @return The node configuration
+     */
+    static ClearNode.Config config(String url, int pollingIntervalMillis) {
+        return new ClearNode.Config() {
+            @Override
+            public String apiKey() {
+                return "api-key";
+            }
+
+            @Override
+            public Optional<String> apiKeySecretLabel() {
+                return Optional.empty();
+            }
+
+            @Override
+            public String projectId() {
+                return "project";
+            }
+
+            @Override
+            public String redirectUrl() {
+                return "https://am.example.com/am/XUI/";
+            }
+
+            @Override
+            public Set<String> apiUrls() {
+                return Collections.singleton(url);
+            }
+
+            @Override
+            public Set<String> secureApiUrls() {
+                return Collections.singleton(url);
+            }
+
+            @Override
+            public String verificationUiUrl() {
+                return url + "/verify";
+            }
+
+            @Override
+            public int pollingInitialInterval() {
+                return pollingIntervalMillis;
+            }
+
+            @Override
+            public int pollingMaxInterval() {
+                return Math.max(pollingIntervalMillis, 8000);
+            }
+        };
+    }
+
+    /**
+     * Create a node with its own client, as Guice would, using API keys from the configuration.
+     *
+     * @param config The node configuration
+     * @param client The CLEAR client
+     * @param metrics The CLEAR metrics
+     * @return The node
+     */
+    static ClearNode node(ClearNode.Config config, ClearClient client, ClearMetrics metrics) {
+        return new ClearNode(config, mock(Realm.class), client, metrics, mock(ClearSecrets.class),
+                             new ClearSessionPool(client, metrics));
+    }
+
+    /**
+     * Create the metrics in a registry of their own.
+     *
+     * @return The CLEAR metrics
+     */
+    static ClearMetrics metrics() {
+        return new ClearMetrics(new MetricRegistry());
+    }
+
+    /**
+     * Run the whole journey: create the session, return from CLEAR and poll until the node picks an outcome.
+     *
+     * @param node The node
+     * @return The action of the last request
+     */
+    Action run(ClearNode node) {
+        Action action = start(node);
+        if (action.outcome != null) {
+            return action;
+        }
+        action = resume(node);
+        for (int polls = 0; action.outcome == null; polls++) {
+            if (polls == MAX_POLLS) {
+                throw new IllegalStateException("The journey is still polling after " + MAX_POLLS + " polls");
+            }
+            action = poll(node);
+        }
+        return action;
+    }
+
+    /**
+     * The first request, which creates the verification session and redirects to CLEAR.
+     *
+     * @param node The node
+     * @return The action of the node
+     */
+    Action start(ClearNode node) {
+        return node.process(context(Collections.emptyMap(), false));
+    }
+
+    /**
+     * The request returning from CLEAR, carrying the nonce of the redirect URL.
+     *
+     * @param node The node
+     * @return The action of the node
+     */
+    Action resume(ClearNode node) {
+        Object nonce = state.get(NONCE);
+        return node.process(context(Collections.singletonMap(NONCE, singletonList(String.valueOf(nonce))), false));
+    }
+
+    /**
+     * A polling round while the verification session is pending.
+     *
+     * @param node The node
+     * @return The action of the node
+     */
+    Action poll(ClearNode node) {
+        return node.process(context(Collections.emptyMap(), true));
+    }
+
+    /**
+     * The ID of the verification session created by the first request.
+     *
+     * @return The CLEAR Verification Session ID, or null before the first request
+     */
+    String sessionId() {
+        Object sessionId = state.get(SESSION_ID);
+        return sessionId == null ? null : sessionId.toString();
+    }
+
+    /**
+     * The value the node stored in shared or transient state.
+     *
+     * @param key The state key
+     * @return The value, or null when none is stored
+     */
+    Object state(String key) {
+        return state.get(key);
+    }
+
+    private TreeContext context(Map<String, List<String>> parameters, boolean polling) {
+        ExternalRequestContext request = new ExternalRequestContext.Builder()
+            .parameters(parameters)
+            .locales(new PreferredLocales())
+            .build();
+        TreeContext context = mock(TreeContext.class, withSettings().useConstructor(
+            json(object()), json(object()), request, Collections.emptyList(), Optional.empty()));
+        when(context.getStateFor(any())).thenReturn(nodeState);
+        if (polling) {
+            when(context.getCallback(PollingWaitCallback.class))
+                .thenReturn(Optional.of(PollingWaitCallback.makeCallback().withWaitTime("0").build()));
+        }
+        return context;
+    }
+
+    private static NodeState nodeState(Map<String, Object> state) {
+        NodeState nodeState = mock(NodeState.class);
+        when(nodeState.isDefined(anyString())).thenAnswer(i -> state.containsKey(i.<String>getArgument(0)));
+        when(nodeState.get(anyString())).thenAnswer(i -> {
+            String key = i.getArgument(0);
+            return state.containsKey(key) ? json(state.get(key)) : null;
+        });
+        doAnswer(i -> {
+            Object value = i.getArgument(1);
+            state.put(i.getArgument(0), value instanceof JsonValue ? ((JsonValue) value).getObject() : value);
+            return nodeState;
+        }).when(nodeState).putShared(anyString(), any());
+        doAnswer(i -> {
+            Object value = i.getArgument(1);
+            state.put(i.getArgument(0), value instanceof JsonValue ? ((JsonValue) value).getObject() : value);
+            return nodeState;
+        }).when(nodeState).putTransient(anyString(), any());
+        doAnswer(i -> {
+            state.remove(i.<String>getArgument(0));
+            return null;
+        }).when(nodeState).remove(anyString());
+        return nodeState;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.security.auth.callback.Callback;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.authentication.callbacks.PollingWaitCallback;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Load test of the CLEAR node: runs many journeys in parallel through both legs of {@link ClearNode#process},
+ * polling pending sessions, against a {@link ClearStub} that follows a script of conditions.
+ * <p>
+ * Requests are processed by a fixed pool of threads standing in for AM's request threads. Between polls a journey
+ * holds no thread, as a browser waiting for its next poll would not. Each phase of the script reports:
+ * </p>
+ * <ul>
+ *     <li>the throughput, in journeys and node requests per second</li>
+ *     <li>the latency percentiles of node requests and of whole journeys, including the waits between polls</li>
+ *     <li>the outcomes the journeys ended with</li>
+ *     <li>the peak and started thread counts, and the CPU used by the process</li>
+ *     <li>the allocation rate of every thread but the stub's, which includes the mocked tree contexts</li>
+ *     <li>the requests CLEAR received, and the retries and hedges the client sent</li>
+ * </ul>
+ * <p>
+ * The script runs once per time budget of the node's CLEAR calls. With an {@code unbounded} budget a request
+ * thread waits for every CLEAR response however long it takes, as it did when the client blocked on the HTTP call,
+ * so comparing the runs shows how many journeys the same fixed pool of request threads gets through before and
+ * after the node bounded its wait, in particular when CLEAR stalls.
+ * </p>
+ * <p>
+ * Run it with {@code mvn -Pload verify}, passing options as {@code -Dload.args="journeys=2000 threads=64"}.
+ * The options are {@code journeys}, the number of journeys of each phase, {@code threads}, the number of request
+ * threads, {@code warmup}, the number of journeys run before the first phase, and {@code budgets}, the comma
+ * separated time budgets in milliseconds to run the script with, {@code unbounded,2000} by default.
+ * </p>
+ */
+public final class ClearLoadHarness {
+
+    private static final int POLLING_INTERVAL_MILLIS = 200;
+    private static final int RESERVOIR_SIZE = 65536;
+    private static final String STUB_THREAD_PREFIX = "clear-stub";
+    private static final String STUB_DISPATCHER_THREAD = "HTTP-Dispatcher";
+    private static final String UNBOUNDED = "unbounded";
+
+    private final ClearNode node;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+    private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private ClearLoadHarness(ClearNode node, int threadCount) {
+        this.node = node;
+        AtomicInteger index = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "am-request-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "am-poll-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Run the load test.
+     *
+     * @param args Options of the form {@code name=value}
+     * @throws Exception When the stub cannot be started or the run is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int journeys = Integer.parseInt(options.getOrDefault("journeys", "2000"));
+        int threadCount = Integer.parseInt(options.getOrDefault("threads", "64"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "500"));
+        String[] budgets = options.getOrDefault("budgets", UNBOUNDED + ",2000").split(",");
+
+        try (ClearStub stub = ClearStub.start()) {
+            for (String budget : budgets) {
+                int budgetMillis = UNBOUNDED.equals(budget) ? Integer.MAX_VALUE : Integer.parseInt(budget);
+                System.out.printf("%n%d journeys per phase on %d request threads, %s budget per CLEAR call%n",
+                                  journeys, threadCount, UNBOUNDED.equals(budget) ? budget : budget + " ms");
+                run(stub, budgetMillis, journeys, threadCount, warmup);
+            }
+        }
+    }
+
+    /**
+     * Run the script with a fresh client and node, so that no breaker or latency state carries over between
+     * budgets.
+     */
+    private static void run(ClearStub stub, int budgetMillis, int journeys, int threadCount, int warmup)
+        throws InterruptedException {
+        MetricRegistry registry = new MetricRegistry();
+        ClearMetrics metrics = new ClearMetrics(registry);
+        ClearHttpHandler httpHandler = new ClearHttpHandler();
+        ClearClient client = new ClearClient(httpHandler, metrics, new ClearWebhookStore());
+        ClearNode.Config config = spy(ClearJourney.config(stub.url(), POLLING_INTERVAL_MILLIS));
+        doReturn(budgetMillis).when(config).createSessionBudget();
+        doReturn(budgetMillis).when(config).resultsBudget();
+        ClearLoadHarness harness = new ClearLoadHarness(ClearJourney.node(config, client, metrics), threadCount);
+        try {
+            harness.run(new Phase("warmup", warmup, Phase.STEADY), stub, registry, false);
+            for (Phase phase : script(journeys)) {
+                harness.run(phase, stub, registry, true);
+            }
+        }
+        finally {
+            harness.close();
+            client.close();
+            httpHandler.close();
+        }
+    }
+
+    /**
+     * The conditions the load test goes through, in order.
+     */
+    private static List<Phase> script(int journeys) {
+        return Arrays.asList(
+            new Phase("steady", journeys, Phase.STEADY),
+            new Phase("long tail", journeys, stub -> stub.sessionLatency(ClearStub.Latency.logNormal(80, 1.0))
+                                                        .resultsLatency(ClearStub.Latency.logNormal(60, 1.0))),
+            new Phase("pending", journeys, Phase.STEADY.andThen(stub -> stub.pendingPolls(2))),
+            new Phase("errors", journeys, Phase.STEADY.andThen(stub -> stub.errorRate(0.05))),
+            new Phase("outage", journeys, Phase.STEADY.andThen(stub -> stub.errorRate(0.5))),
+            new Phase("stalls", journeys, Phase.STEADY.andThen(stub -> stub.sessionLatency(Phase.STALLING)
+                                                                           .resultsLatency(Phase.STALLING))));
+    }
+
+    private void run(Phase phase, ClearStub stub, MetricRegistry registry, boolean report)
+        throws InterruptedException {
+        phase.conditions.accept(stub);
+        Run run = new Run(phase.journeys);
+        Map<String, Long> countersBefore = counters(registry);
+        long stubRequestsBefore = stub.requests();
+        long stubErrorsBefore = stub.errors();
+        long threadsStartedBefore = threads.getTotalStartedThreadCount();
+        threads.resetPeakThreadCount();
+        long allocatedBefore = allocatedBytes();
+        long cpuBefore = os.getProcessCpuTime();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < phase.journeys; i++) {
+            ClearJourney journey = new ClearJourney();
+            long journeyStart = System.nanoTime();
+            workers.execute(() -> step(run, journey, Leg.START, journeyStart));
+        }
+        run.done.await();
+
+        long elapsed = System.nanoTime() - start;
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (!report) {
+            return;
+        }
+        double seconds = elapsed / 1e9;
+        long requests = run.requests.sum();
+        Map<String, Long> countersAfter = counters(registry);
+        System.out.printf("%nphase %s: %d journeys in %.1f s, %.1f journeys/s, %.1f requests/s%n",
+                          phase.name, phase.journeys, seconds, phase.journeys / seconds, requests / seconds);
+        System.out.println("  request latency ms: " + percentiles(run.requestNanos.getSnapshot()));
+        System.out.println("  journey latency ms: " + percentiles(run.journeyNanos.getSnapshot()));
+        System.out.println("  outcomes: " + new TreeMap<>(run.outcomes));
+        System.out.printf("  threads: peak %d live, %d started, CPU %.0f%% of one core (stub included)%n",
+                          threads.getPeakThreadCount(), threads.getTotalStartedThreadCount() - threadsStartedBefore,
+                          100.0 * cpu / elapsed);
+        System.out.printf("  allocation: %.1f MB/s, %.1f KB per journey%n",
+                          allocated / seconds / (1024 * 1024), allocated / 1024.0 / phase.journeys);
+        System.out.printf("  CLEAR: %d requests, %d injected errors; client retries %d, hedges %d%n",
+                          stub.requests() - stubRequestsBefore, stub.errors() - stubErrorsBefore,
+                          delta(countersBefore, countersAfter, "marketplace.clear.retry.attempts"),
+                          delta(countersBefore, countersAfter, "marketplace.clear.hedge.attempts"));
+    }
+
+    /**
+     * Process one request of the journey, then hand the next one to a request thread, after the polling wait
+     * the node asked for.
+     */
+    private void step(Run run, ClearJourney journey, Leg leg, long journeyStart) {
+        long start = System.nanoTime();
+        Action action;
+        try {
+            action = leg == Leg.START ? journey.start(node) : leg == Leg.RESUME ? journey.resume(node)
+                                                                                : journey.poll(node);
+        }
+        catch (RuntimeException e) {
+            run.finish("exception:" + e.getClass().getSimpleName(), journeyStart);
+            return;
+        }
+        run.requestNanos.update(System.nanoTime() - start);
+        run.requests.increment();
+        if (action.outcome != null) {
+            run.finish(action.outcome, journeyStart);
+            return;
+        }
+
+        Leg next = leg == Leg.START ? Leg.RESUME : Leg.POLL;
+        long wait = leg == Leg.START ? 0 : pollingWaitMillis(action);
+        Runnable nextStep = () -> step(run, journey, next, journeyStart);
+        if (wait > 0) {
+            scheduler.schedule(() -> workers.execute(nextStep), wait, TimeUnit.MILLISECONDS);
+        }
+        else {
+            workers.execute(nextStep);
+        }
+    }
+
+    private static long pollingWaitMillis(Action action) {
+        for (Callback callback : action.callbacks) {
+            if (callback instanceof PollingWaitCallback) {
+                return Long.parseLong(((PollingWaitCallback) callback).getWaitTime());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The bytes allocated so far by the threads alive, leaving out the stub's threads.
+     */
+    private long allocatedBytes() {
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        ThreadInfo[] infos = threads.getThreadInfo(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null || allocated[i] < 0 || isStubThread(infos[i].getThreadName())) {
+                continue;
+            }
+            total += allocated[i];
+        }
+        return total;
+    }
+
+    private static boolean isStubThread(String name) {
+        return name.startsWith(STUB_THREAD_PREFIX) || name.equals(STUB_DISPATCHER_THREAD);
+    }
+
+    private static Map<String, Long> counters(MetricRegistry registry) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : registry.getCounters().entrySet()) {
+            counts.put(counter.getKey(), counter.getValue().getCount());
+        }
+        return counts;
+    }
+
+    private static long delta(Map<String, Long> before, Map<String, Long> after, String name) {
+        return after.getOrDefault(name, 0L) - before.getOrDefault(name, 0L);
+    }
+
+    private static String percentiles(Snapshot snapshot) {
+        List<String> values = new ArrayList<>();
+        values.add(String.format("p50 %.1f", snapshot.getMedian() / 1e6));
+        values.add(String.format("p90 %.1f", snapshot.getValue(0.90) / 1e6));
+        values.add(String.format("p95 %.1f", snapshot.get95thPercentile() / 1e6));
+        values.add(String.format("p99 %.1f", snapshot.get99thPercentile() / 1e6));
+        values.add(String.format("max %.1f", snapshot.getMax() / 1e6));
+        return String.join(", ", values);
+    }
+
+    private void close() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private enum Leg { START, RESUME, POLL }
+
+    /**
+     * A step of the script: the CLEAR conditions and the number of journeys run under them.
+     */
+    private static final class Phase {
+
+        /**
+         * CLEAR answering every request after a short, mostly steady delay.
+         */
+        static final Consumer<ClearStub> STEADY = stub -> stub.sessionLatency(ClearStub.Latency.logNormal(80, 0.3))
+                                                              .resultsLatency(ClearStub.Latency.logNormal(60, 0.3))
+                                                              .errorRate(0)
+                                                              .pendingPolls(0);
+
+        private static final ClearStub.Latency TYPICAL = ClearStub.Latency.logNormal(80, 0.3);
+
+        /**
+         * One CLEAR response in twenty stalling for twelve seconds, just under the HTTP client's read timeout.
+         */
+        static final ClearStub.Latency STALLING = () -> ThreadLocalRandom.current().nextInt(20) == 0
+                                                        ? 12_000 : TYPICAL.nextMillis();
+
+        private final String name;
+        private final int journeys;
+        private final Consumer<ClearStub> conditions;
+
+        private Phase(String name, int journeys, Consumer<ClearStub> conditions) {
+            this.name = name;
+            this.journeys = journeys;
+            this.conditions = conditions;
+        }
+    }
+
+    /**
+     * The measurements of a phase.
+     */
+    private static final class Run {
+        private final CountDownLatch done;
+        private final Histogram requestNanos = new Histogram(new UniformReservoir(RESERVOIR_SIZE));
+        private final Histogram journeyNanos = new Histogram(new UniformReservoir(RESERVOIR_SIZE));
+        private final LongAdder requests = new LongAdder();
+        private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+        private Run(int journeys) {
+            this.done = new CountDownLatch(journeys);
+        }
+
+        private void finish(String outcome, long journeyStart) {
+            journeyNanos.update(System.nanoTime() - journeyStart);
+            outcomes.computeIfAbsent(outcome, o -> new LongAdder()).increment();
+            done.countDown();
+        }
+    }
+}
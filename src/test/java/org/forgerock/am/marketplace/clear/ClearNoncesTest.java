@@ -0,0 +1,42 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ClearNoncesTest {
+
+    @Test
+    void generatesDistinctNonces() {
+        String nonce = ClearNonces.generate();
+
+        assertNotEquals(nonce, ClearNonces.generate());
+        assertTrue(nonce.matches("[0-9a-z]+"));
+    }
+
+    @Test
+    void matchesEqualNoncesOnly() {
+        assertTrue(ClearNonces.matches("abc", "abc"));
+        assertFalse(ClearNonces.matches("abc", "abd"));
+        assertFalse(ClearNonces.matches(null, "abc"));
+        assertFalse(ClearNonces.matches("abc", null));
+    }
+
+    @Test
+    void rejectsPrefixesOfTheNonce() {
+        String nonce = ClearNonces.generate();
+
+        assertFalse(ClearNonces.matches(nonce, nonce.substring(0, nonce.length() - 1)));
+        assertFalse(ClearNonces.matches(nonce, ""));
+    }
+}
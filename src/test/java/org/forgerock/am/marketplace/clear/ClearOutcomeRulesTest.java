@@ -0,0 +1,129 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.forgerock.json.JsonValue;
+import org.junit.jupiter.api.Test;
+
+class ClearOutcomeRulesTest {
+
+    private static final String DEFAULT = "Continue";
+
+    @Test
+    void selectsTheFirstMatchingRule() {
+        ClearOutcomeRules rules = rules("failed: /status eq failure",
+                                        "verified: /status eq success",
+                                        "any: /status exists");
+
+        assertEquals("verified", rules.evaluate(results(), DEFAULT));
+    }
+
+    @Test
+    void fallsBackToTheDefaultOutcome() {
+        ClearOutcomeRules rules = rules("failed: /status eq failure");
+
+        assertEquals(DEFAULT, rules.evaluate(results(), DEFAULT));
+        assertEquals(DEFAULT, ClearOutcomeRules.of(Collections.emptyList()).evaluate(results(), DEFAULT));
+    }
+
+    @Test
+    void requiresEveryCondition() {
+        assertEquals("adult", rules("adult: /status eq success and /traits/age ge 18").evaluate(results(), DEFAULT));
+        assertEquals(DEFAULT, rules("senior: /status eq success and /traits/age gt 65").evaluate(results(), DEFAULT));
+    }
+
+    @Test
+    void comparesNumbers() {
+        JsonValue results = results();
+
+        assertEquals("match", rules("match: /traits/age eq 42").evaluate(results, DEFAULT));
+        assertEquals("match", rules("match: /traits/age ne 41").evaluate(results, DEFAULT));
+        assertEquals("match", rules("match: /traits/age lt 42.5").evaluate(results, DEFAULT));
+        assertEquals("match", rules("match: /traits/age le 42").evaluate(results, DEFAULT));
+        assertEquals("match", rules("match: /traits/score gt 0.5").evaluate(results, DEFAULT));
+        assertEquals(DEFAULT, rules("match: /traits/first_name gt 1").evaluate(results, DEFAULT));
+    }
+
+    @Test
+    void matchesQuotedStrings() {
+        assertEquals("match", rules("match: /traits/first_name eq \"Ada\"").evaluate(results(), DEFAULT));
+    }
+
+    @Test
+    void checksPresence() {
+        assertEquals(DEFAULT, rules("match: /traits/last_name exists").evaluate(results(), DEFAULT));
+    }
+
+    @Test
+    void comparesAges() {
+        JsonValue results = results();
+
+        assertEquals("recent", rules("recent: /traits/document/issue_date age_lt 3650").evaluate(results, DEFAULT));
+        assertEquals("old", rules("old: /traits/document/issue_date age_gt 30").evaluate(results, DEFAULT));
+        assertEquals(DEFAULT, rules("old: /traits/first_name age_gt 30").evaluate(results, DEFAULT));
+    }
+
+    @Test
+    void listsTheOutcomesAndFields() {
+        List<String> definitions = Arrays.asList("verified: /status eq success and /traits/age ge 18",
+                                                 "failed: /status eq failure");
+        ClearOutcomeRules rules = ClearOutcomeRules.of(definitions);
+
+        assertEquals(Arrays.asList("verified", "failed"),
+                     Arrays.asList(ClearOutcomeRules.outcomes(definitions).toArray()));
+        assertArrayEquals(new String[] {"/status", "/traits/age"}, rules.pointers());
+    }
+
+    @Test
+    void compilesRulesOnce() {
+        List<String> definitions = Collections.singletonList("verified: /status eq success");
+
+        assertSame(ClearOutcomeRules.of(definitions), ClearOutcomeRules.of(definitions));
+    }
+
+    @Test
+    void rejectsInvalidRules() {
+        assertThrows(IllegalArgumentException.class, () -> rules("/status eq success"));
+        assertThrows(IllegalArgumentException.class, () -> rules("verified: status eq success"));
+        assertThrows(IllegalArgumentException.class, () -> rules("verified: /status eq"));
+        assertThrows(IllegalArgumentException.class, () -> rules("verified: /status like success"));
+        assertThrows(IllegalArgumentException.class, () -> rules("verified: /traits/age gt old"));
+    }
+
+    private static ClearOutcomeRules rules(String... definitions) {
+        return ClearOutcomeRules.of(Arrays.asList(definitions));
+    }
+
+    private static JsonValue results() {
+        String issued = LocalDate.now(ZoneOffset.UTC).minusDays(365).toString();
+        return json(object(
+            field("status", "success"),
+            field("traits", object(
+                field("first_name", "Ada"),
+                field("age", 42),
+                field("score", 0.9),
+                field("document", object(field("issue_date", issued))),
+                field("emails", array("ada@example.com"))))));
+    }
+}
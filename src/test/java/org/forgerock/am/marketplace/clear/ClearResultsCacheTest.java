@@ -0,0 +1,150 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.junit.jupiter.api.Test;
+
+class ClearResultsCacheTest {
+
+    private static final long TTL = 60_000;
+
+    private final ClearResultsCache cache = new ClearResultsCache();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void sharesAnInFlightLoad() throws Exception {
+        PromiseImpl<JsonValue, ClearServiceException> pending = PromiseImpl.create();
+        Promise<JsonValue, ClearServiceException> first = cache.get("key", TTL, 10, r -> true, load(pending));
+        Promise<JsonValue, ClearServiceException> second = cache.get("key", TTL, 10, r -> true, load(pending));
+
+        pending.handleResult(results());
+
+        assertEquals(1, loads.get());
+        assertEquals(results().getObject(), first.getOrThrow().getObject());
+        assertNotSame(first.getOrThrow(), second.getOrThrow());
+    }
+
+    @Test
+    void keepsCacheableResults() throws Exception {
+        cache.get("key", TTL, 10, r -> true, load(results())).getOrThrow();
+        cache.get("key", TTL, 10, r -> true, load(results())).getOrThrow();
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void dropsResultsThatAreNotCacheable() throws Exception {
+        cache.get("key", TTL, 10, r -> false, load(results())).getOrThrow();
+        cache.get("key", TTL, 10, r -> false, load(results())).getOrThrow();
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void dropsFailedLoads() {
+        Supplier<Promise<JsonValue, ClearServiceException>> failing = () -> {
+            loads.incrementAndGet();
+            return newExceptionPromise(new ClearServerErrorException("error", 500, null));
+        };
+        cache.get("key", TTL, 10, r -> true, failing);
+        cache.get("key", TTL, 10, r -> true, failing);
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void bypassesTheCacheWhenDisabled() throws Exception {
+        cache.get("key", 0, 10, r -> true, load(results())).getOrThrow();
+        cache.get("key", 0, 10, r -> true, load(results())).getOrThrow();
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void doesNotShareACallersCopy() throws Exception {
+        JsonValue cached = results();
+        JsonValue copy = cache.get("key", TTL, 10, r -> true, load(cached)).getOrThrow();
+        copy.clear();
+
+        JsonValue cachedAgain = cache.get("key", TTL, 10, r -> true, load(cached)).getOrThrow();
+        assertEquals(results().getObject(), cachedAgain.getObject());
+    }
+
+    @Test
+    void keepsTheSharedLoadWhenACallerCancels() throws Exception {
+        PromiseImpl<JsonValue, ClearServiceException> pending = PromiseImpl.create();
+        Promise<JsonValue, ClearServiceException> first = cache.get("key", TTL, 10, r -> true, load(pending));
+        first.cancel(true);
+        Promise<JsonValue, ClearServiceException> second = cache.get("key", TTL, 10, r -> true, load(pending));
+
+        pending.handleResult(results());
+
+        assertFalse(pending.isCancelled());
+        assertEquals(1, loads.get());
+        assertEquals(results().getObject(), second.getOrThrow().getObject());
+    }
+
+    @Test
+    void clearsExpiredResultsWhenSwept() throws Exception {
+        JsonValue cached = results();
+        cache.get("key", 1, 10, r -> true, load(cached)).getOrThrow();
+        Thread.sleep(5);
+
+        cache.sweep();
+
+        assertEquals(0, cached.size());
+        cache.get("key", 1, 10, r -> true, load(results())).getOrThrow();
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void evictsAndClearsEntriesAboveTheMaximumSize() throws Exception {
+        JsonValue first = results();
+        JsonValue second = results();
+        cache.get("first", TTL, 1, r -> true, load(first)).getOrThrow();
+        JsonValue copy = cache.get("second", TTL, 1, r -> true, load(second)).getOrThrow();
+
+        assertEquals(1, (first.size() == 0 ? 1 : 0) + (second.size() == 0 ? 1 : 0));
+        assertEquals(results().getObject(), copy.getObject());
+    }
+
+    private Supplier<Promise<JsonValue, ClearServiceException>> load(JsonValue results) {
+        return () -> {
+            loads.incrementAndGet();
+            return newResultPromise(results);
+        };
+    }
+
+    private Supplier<Promise<JsonValue, ClearServiceException>> load(
+        Promise<JsonValue, ClearServiceException> results) {
+        return () -> {
+            loads.incrementAndGet();
+            return results;
+        };
+    }
+
+    private static JsonValue results() {
+        return json(object(field("status", "success"), field("traits", object(field("first_name", "Ada")))));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.forgerock.json.JsonValue;
+import org.junit.jupiter.api.Test;
+
+class ClearResultsProjectionTest {
+
+    private static final String BODY = "{\"id\":\"session\",\"status\":\"success\","
+                                       + "\"traits\":{\"first_name\":\"Ada\",\"last_name\":\"Lovelace\","
+                                       + "\"document\":{\"number\":\"X123\",\"issue_date\":\"2020-01-01\"},"
+                                       + "\"emails\":[\"ada@example.com\"]},\"score\":0.9,\"verified\":true}";
+
+    @Test
+    void keepsOnlyTheSelectedFields() throws IOException {
+        ClearResultsProjection projection = projection("/status", "/traits/first_name", "/traits/emails");
+
+        assertEquals(json(object(
+            field("status", "success"),
+            field("traits", object(field("first_name", "Ada"), field("emails", array("ada@example.com")))))
+        ).getObject(), read(projection).getObject());
+    }
+
+    @Test
+    void keepsWholeSelectedObjects() throws IOException {
+        ClearResultsProjection projection = projection("/traits/document");
+
+        assertEquals(json(object(field("traits", object(field("document", object(
+            field("number", "X123"), field("issue_date", "2020-01-01"))))))).getObject(),
+                     read(projection).getObject());
+    }
+
+    @Test
+    void keepsScalarTypes() throws IOException {
+        JsonValue results = read(projection("score", "verified"));
+
+        assertEquals(0.9, results.get("score").asDouble());
+        assertEquals(Boolean.TRUE, results.get("verified").asBoolean());
+    }
+
+    @Test
+    void keepsRequiredFields() throws IOException {
+        ClearResultsProjection projection = ClearResultsProjection.of(Collections.singletonList("/traits/first_name"),
+                                                                      "/status");
+
+        assertEquals("success", read(projection).get("status").asString());
+        assertEquals("/status,/traits/first_name", projection.key());
+    }
+
+    @Test
+    void keepsTheWholeBodyWithoutSelectedFields() {
+        assertNull(ClearResultsProjection.of(null, "/status"));
+        assertNull(ClearResultsProjection.of(Collections.emptyList(), "/status"));
+        assertNull(ClearResultsProjection.of(Collections.singletonList(" ")));
+    }
+
+    @Test
+    void appliesToParsedResults() throws IOException {
+        ClearResultsProjection projection = projection("/status", "/traits/first_name", "/missing");
+        JsonValue full = json(object(
+            field("status", "success"),
+            field("traits", object(field("first_name", "Ada"), field("last_name", "Lovelace")))));
+
+        assertEquals(read(projection).getObject(), projection.apply(full).getObject());
+    }
+
+    @Test
+    void unescapesMemberNamesInPointers() throws IOException {
+        ClearResultsProjection projection = projection("/checks/a~1b", "/checks/c~0d", "/checks/~01");
+        String body = "{\"checks\":{\"a/b\":1,\"c~d\":2,\"~1\":3,\"a\":{\"b\":4},\"~01\":5}}";
+
+        JsonValue expected = json(object(field("checks", object(field("a/b", 1), field("c~d", 2), field("~1", 3)))));
+        assertEquals(expected.getObject(), projection.read(new ByteArrayInputStream(body.getBytes(UTF_8))).getObject());
+        assertEquals(expected.getObject(),
+                     projection.apply(json(object(field("checks", object(
+                         field("a/b", 1), field("c~d", 2), field("~1", 3), field("a", object(field("b", 4))),
+                         field("~01", 5)))))).getObject());
+    }
+
+    @Test
+    void rejectsBodiesThatAreNotObjects() {
+        ClearResultsProjection projection = projection("/status");
+
+        assertThrows(IOException.class,
+                     () -> projection.read(new ByteArrayInputStream("[1, 2]".getBytes(UTF_8))));
+    }
+
+    private static ClearResultsProjection projection(String... fields) {
+        return ClearResultsProjection.of(Arrays.asList(fields));
+    }
+
+    private static JsonValue read(ClearResultsProjection projection) throws IOException {
+        return projection.read(new ByteArrayInputStream(BODY.getBytes(UTF_8)));
+    }
+}
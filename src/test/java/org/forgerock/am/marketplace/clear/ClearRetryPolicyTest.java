@@ -0,0 +1,178 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.ConnectException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+class ClearRetryPolicyTest {
+
+    private static final JsonValue RESULTS = json(object(field("status", "success")));
+    private static final ClearRetryPolicy.Settings RETRY_TWICE = new ClearRetryPolicy.Settings(2, 1, 100, false);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final MetricRegistry registry = new MetricRegistry();
+    private final ClearRetryPolicy policy = new ClearRetryPolicy(scheduler, new ClearMetrics(registry));
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void retriesIdempotentCallsAfterServerErrors() throws Exception {
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            RETRY_TWICE, true, ClearDeadline.NONE, -1, failFirst(1, new ClearServerErrorException("error", 500, null)));
+
+        assertEquals(RESULTS, result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertEquals(1, registry.counter("marketplace.clear.retry.wins").getCount());
+    }
+
+    @Test
+    void doesNotRetryNonIdempotentCallsAfterServerErrors() {
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            RETRY_TWICE, false, ClearDeadline.NONE, -1,
+            failFirst(1, new ClearServerErrorException("error", 500, null)));
+
+        assertThrows(ClearServerErrorException.class, () -> result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void retriesNonIdempotentCallsCleanlyRejected() throws Exception {
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            RETRY_TWICE, false, ClearDeadline.NONE, -1, failFirst(1, new ClearServerErrorException("busy", 503, null)));
+
+        assertEquals(RESULTS, result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void retriesNonIdempotentCallsAfterRefusedConnections() throws Exception {
+        ClearServiceException refused = new ClearServerErrorException("refused", 502, new ConnectException());
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            RETRY_TWICE, false, ClearDeadline.NONE, -1, failFirst(1, refused));
+
+        assertEquals(RESULTS, result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void doesNotRetryClientErrors() {
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            RETRY_TWICE, true, ClearDeadline.NONE, -1, failFirst(1, new ClearClientErrorException("bad", 400, null)));
+
+        assertThrows(ClearClientErrorException.class, () -> result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void doesNotRetryUnexpectedStatuses() {
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            RETRY_TWICE, true, ClearDeadline.NONE, -1,
+            failFirst(1, new ClearUnexpectedStatusException("moved", 302, null)));
+
+        assertThrows(ClearUnexpectedStatusException.class, () -> result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void stopsAfterTheMaximumNumberOfRetries() {
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            RETRY_TWICE, true, ClearDeadline.NONE, -1, failFirst(10, new ClearServerErrorException("busy", 503, null)));
+
+        assertThrows(ClearServerErrorException.class, () -> result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void doesNotRetryPastTheDeadline() {
+        ClearRetryPolicy.Settings slowBackoff = new ClearRetryPolicy.Settings(2, 10_000, 100, false);
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            slowBackoff, true, ClearDeadline.after(1_000), -1,
+            failFirst(1, new ClearServerErrorException("busy", 503, null)));
+
+        assertThrows(ClearServerErrorException.class, () -> result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void stopsRetryingOnceTheBudgetIsSpent() throws Exception {
+        ClearRetryPolicy.Settings noBudget = new ClearRetryPolicy.Settings(1, 1, 0, false);
+        for (int i = 0; i < 20; i++) {
+            Promise<JsonValue, ClearServiceException> result = policy.call(
+                noBudget, true, ClearDeadline.NONE, -1, failFirst(Integer.MAX_VALUE,
+                                                                  new ClearServerErrorException("busy", 503, null)));
+            assertThrows(ClearServerErrorException.class, () -> result.getOrThrow(1, TimeUnit.SECONDS));
+        }
+
+        // The initial budget allows ten retries
+        assertEquals(30, attempts.get());
+        assertEquals(10, registry.counter("marketplace.clear.retry.budgetExhausted").getCount());
+    }
+
+    @Test
+    void hedgesSlowIdempotentCalls() throws Exception {
+        PromiseImpl<JsonValue, ClearServiceException> stuck = PromiseImpl.create();
+        ClearRetryPolicy.Settings hedging = new ClearRetryPolicy.Settings(0, 1, 100, true);
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            hedging, true, ClearDeadline.NONE, 10,
+            () -> attempts.getAndIncrement() == 0 ? stuck : newResultPromise(RESULTS));
+
+        assertEquals(RESULTS, result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertEquals(1, registry.counter("marketplace.clear.hedge.wins").getCount());
+    }
+
+    @Test
+    void failsHedgedCallsOnceEveryAttemptFailed() {
+        PromiseImpl<JsonValue, ClearServiceException> slowFailure = PromiseImpl.create();
+        ClearRetryPolicy.Settings hedging = new ClearRetryPolicy.Settings(0, 1, 100, true);
+        Promise<JsonValue, ClearServiceException> result = policy.call(
+            hedging, true, ClearDeadline.NONE, 10, () -> {
+                if (attempts.getAndIncrement() == 0) {
+                    return slowFailure;
+                }
+                slowFailure.handleException(new ClearServerErrorException("first", 500, null));
+                return newExceptionPromise(new ClearServerErrorException("second", 500, null));
+            });
+
+        assertThrows(ClearServerErrorException.class, () -> result.getOrThrow(1, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+    }
+
+    private Supplier<Promise<JsonValue, ClearServiceException>> failFirst(int failures,
+                                                                          ClearServiceException failure) {
+        return () -> attempts.getAndIncrement() < failures
+                     ? newExceptionPromise(failure)
+                     : newResultPromise(RESULTS);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+class ClearServiceExceptionTest {
+
+    private static final int FAILURES = 10_000;
+
+    @Test
+    void samplesStackTracesOfServiceExceptions() {
+        assertSampled(() -> new ClearServiceException("Unexpected error"));
+    }
+
+    @Test
+    void samplesStackTracesOfClassifiedExceptions() {
+        assertSampled(() -> new ClearTimeoutException("CLEAR API call timed out", null));
+        assertSampled(() -> new ClearCircuitOpenException("Circuit open"));
+    }
+
+    /**
+     * A burst of failures, created well within a few seconds, captures a stack trace at most once per second.
+     */
+    private static void assertSampled(Supplier<ClearServiceException> failure) {
+        long start = System.nanoTime();
+        int withStackTrace = 0;
+        for (int i = 0; i < FAILURES; i++) {
+            if (failure.get().hasStackTrace()) {
+                withStackTrace++;
+            }
+        }
+        long elapsedSeconds = (System.nanoTime() - start) / 1_000_000_000L;
+        assertTrue(withStackTrace <= elapsedSeconds + 1,
+                   withStackTrace + " stack traces captured in " + elapsedSeconds + "s");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.promise.PromiseImpl;
+import org.junit.jupiter.api.Test;
+
+class ClearSessionPoolTest {
+
+    private static final int MAX_POOLS = 16;
+
+    private final ClearClient client = mock(ClearClient.class);
+    private final ClearSessionPool pool = new ClearSessionPool(client, ClearJourney.metrics());
+    private final ClearNode.Config config = spy(ClearJourney.config("https://clear.example.com"));
+    private final AtomicInteger created = new AtomicInteger();
+
+    @Test
+    void handsOutSessionsCreatedAhead() {
+        pooled();
+
+        assertNull(pool.take(config, "key-0"));
+        ClearSessionPool.Session session = pool.take(config, "key-0");
+
+        assertNotNull(session);
+        assertEquals("session-0", session.id());
+        assertEquals("token-0", session.token());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedPool() {
+        pooled();
+        for (int i = 0; i < MAX_POOLS; i++) {
+            pool.take(config, "key-" + i);
+        }
+        assertNotNull(pool.take(config, "key-0"));
+
+        pool.take(config, "key-" + MAX_POOLS);
+
+        assertNotNull(pool.take(config, "key-0"));
+        assertNull(pool.take(config, "key-1"));
+    }
+
+    @Test
+    void keepsPoolsWithSessionsBeingCreated() {
+        doReturn(1).when(config).sessionPoolSize();
+        PromiseImpl<JsonValue, ClearServiceException> pending = PromiseImpl.create();
+        when(client.createVerificationSessionAsync(any(), anyString(), anyString())).thenReturn(pending);
+        for (int i = 0; i < MAX_POOLS; i++) {
+            pool.take(config, "key-" + i);
+        }
+
+        assertNull(pool.take(config, "key-" + MAX_POOLS));
+
+        verify(client, never()).createVerificationSessionAsync(any(), eq("key-" + MAX_POOLS), anyString());
+        pending.handleResult(json(object(field("id", "session-0"), field("token", "token-0"))));
+        assertNotNull(pool.take(config, "key-0"));
+    }
+
+    /**
+     * Pool one session per API key, created as soon as it is asked for.
+     */
+    private void pooled() {
+        doReturn(1).when(config).sessionPoolSize();
+        when(client.createVerificationSessionAsync(any(), anyString(), anyString())).thenAnswer(i -> {
+            int id = created.getAndIncrement();
+            return newResultPromise(json(object(field("id", "session-" + id), field("token", "token-" + id))));
+        });
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the CLEAR {@code /v1/verification_sessions} endpoints, so that benchmarks and tests run
+ * offline.
+ * <p>
+ * {@code POST /v1/verification_sessions/} creates a session and {@code GET /v1/verification_sessions/{id}}
+ * returns successful verification results for it. Responses can be delayed, which is done on a scheduler so that
+ * slow responses do not hold a server thread, and a share of requests can be answered with an error status. The
+ * delays of each endpoint are drawn from a {@link Latency} distribution, and sessions can be reported as
+ * {@code processing} for a number of polls before they succeed. All settings can be changed while the stub runs,
+ * so that a load test can script a sequence of conditions.
+ * </p>
+ */
+final class ClearStub implements Closeable {
+
+    private static final String SESSIONS_PATH = "/v1/verification_sessions";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final Map<String, AtomicInteger> polls = new ConcurrentHashMap<>();
+    private volatile Latency sessionLatency = Latency.constant(0);
+    private volatile Latency resultsLatency = Latency.constant(0);
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile int pendingPolls;
+
+    private ClearStub(HttpServer server, ExecutorService executor, ScheduledExecutorService scheduler) {
+        this.server = server;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Start a stub listening on an ephemeral loopback port.
+     *
+     * @return The started stub
+     * @throws IOException When the server cannot be bound
+     */
+    static ClearStub start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(4, daemon("clear-stub"));
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, daemon("clear-stub-delay"));
+        ClearStub stub = new ClearStub(server, executor, scheduler);
+        server.createContext(SESSIONS_PATH, stub::handle);
+        server.setExecutor(executor);
+        server.start();
+        return stub;
+    }
+
+    /**
+     * The base URL of the stub, to be configured as the CLEAR API URL.
+     *
+     * @return The base URL
+     */
+    String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delay every response by the same time.
+     *
+     * @param millis The delay in milliseconds
+     * @return This stub
+     */
+    ClearStub latency(long millis) {
+        return sessionLatency(Latency.constant(millis)).resultsLatency(Latency.constant(millis));
+    }
+
+    /**
+     * Delay the create-session responses.
+     *
+     * @param latency The distribution of the delays
+     * @return This stub
+     */
+    ClearStub sessionLatency(Latency latency) {
+        this.sessionLatency = latency;
+        return this;
+    }
+
+    /**
+     * Delay the verification results responses.
+     *
+     * @param latency The distribution of the delays
+     * @return This stub
+     */
+    ClearStub resultsLatency(Latency latency) {
+        this.resultsLatency = latency;
+        return this;
+    }
+
+    /**
+     * Answer a share of the requests with a 503.
+     *
+     * @param rate The share of failed requests, between 0 and 1
+     * @return This stub
+     */
+    ClearStub errorRate(double rate) {
+        return errorRate(rate, 503);
+    }
+
+    /**
+     * Answer a share of the requests with an error status.
+     *
+     * @param rate   The share of failed requests, between 0 and 1
+     * @param status The HTTP status of the failed requests
+     * @return This stub
+     */
+    ClearStub errorRate(double rate, int status) {
+        this.errorStatus = status;
+        this.errorRate = rate;
+        return this;
+    }
+
+    /**
+     * Report each session as {@code processing} for a number of results requests before it succeeds.
+     *
+     * @param count The number of pending results requests per session
+     * @return This stub
+     */
+    ClearStub pendingPolls(int count) {
+        this.pendingPolls = count;
+        return this;
+    }
+
+    /**
+     * The number of sessions created so far.
+     *
+     * @return The session count
+     */
+    long sessions() {
+        return sessions.get();
+    }
+
+    /**
+     * The number of requests received so far.
+     *
+     * @return The request count
+     */
+    long requests() {
+        return requests.get();
+    }
+
+    /**
+     * The number of requests answered with an injected error so far.
+     *
+     * @return The error count
+     */
+    long errors() {
+        return errors.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            body.readAllBytes();
+        }
+        requests.incrementAndGet();
+        int status;
+        String response;
+        Latency latency = resultsLatency;
+        String path = exchange.getRequestURI().getPath();
+        if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            status = errorStatus;
+            response = "{\"error\":\"unavailable\"}";
+        }
+        else if ("POST".equals(exchange.getRequestMethod())) {
+            long id = sessions.incrementAndGet();
+            latency = sessionLatency;
+            status = 201;
+            response = "{\"id\":\"session-" + id + "\",\"token\":\"token-" + id
+                       + "\",\"status\":\"awaiting_user_input\"}";
+        }
+        else if ("GET".equals(exchange.getRequestMethod()) && path.length() > SESSIONS_PATH.length() + 1) {
+            String id = path.substring(SESSIONS_PATH.length() + 1);
+            status = 200;
+            response = isPending(id) ? "{\"id\":\"" + id + "\",\"status\":\"processing\"}" : results(id);
+        }
+        else {
+            status = 404;
+            response = "{\"error\":\"not found\"}";
+        }
+
+        long delay = latency.nextMillis();
+        if (delay > 0) {
+            scheduler.schedule(() -> respond(exchange, status, response), delay, TimeUnit.MILLISECONDS);
+        }
+        else {
+            respond(exchange, status, response);
+        }
+    }
+
+    private boolean isPending(String id) {
+        int pending = pendingPolls;
+        if (pending <= 0) {
+            return false;
+        }
+        if (polls.computeIfAbsent(id, k -> new AtomicInteger()).incrementAndGet() <= pending) {
+            return true;
+        }
+        polls.remove(id);
+        return false;
+    }
+
+    private static String results(String id) {
+        return "{\"id\":\"" + id + "\",\"status\":\"success\",\"project_id\":\"project\","
+               + "\"traits\":{\"first_name\":\"Ada\",\"last_name\":\"Lovelace\",\"dob\":\"1815-12-10\","
+               + "\"email\":\"ada@example.com\",\"phone\":\"+15555550100\","
+               + "\"address\":{\"line1\":\"12 St James's Square\",\"city\":\"London\",\"country\":\"GB\"},"
+               + "\"document\":{\"type\":\"passport\",\"number\":\"X1234567\",\"issue_date\":\"2020-01-01\"}},"
+               + "\"checks\":[{\"name\":\"liveness\",\"result\":\"pass\"},"
+               + "{\"name\":\"document\",\"result\":\"pass\"}]}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String response) {
+        byte[] bytes = response.getBytes(UTF_8);
+        try (OutputStream body = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            body.write(bytes);
+        }
+        catch (IOException e) {
+            // The client gave up on the request
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * A distribution of response delays.
+     */
+    interface Latency {
+
+        /**
+         * Draw the delay of the next response.
+         *
+         * @return The delay in milliseconds
+         */
+        long nextMillis();
+
+        /**
+         * The same delay for every response.
+         *
+         * @param millis The delay in milliseconds
+         * @return The distribution
+         */
+        static Latency constant(long millis) {
+            return () -> millis;
+        }
+
+        /**
+         * Delays drawn uniformly from a range.
+         *
+         * @param minMillis The shortest delay in milliseconds
+         * @param maxMillis The longest delay in milliseconds
+         * @return The distribution
+         */
+        static Latency uniform(long minMillis, long maxMillis) {
+            return () -> ThreadLocalRandom.current().nextLong(minMillis, maxMillis + 1);
+        }
+
+        /**
+         * Log-normally distributed delays, the usual shape of service latencies with a long tail.
+         *
+         * @param medianMillis The median delay in milliseconds
+         * @param sigma        The standard deviation of the log of the delay, e.g. 0.5 for a p99 about three times
+         *                     the median
+         * @return The distribution
+         */
+        static Latency logNormal(double medianMillis, double sigma) {
+            return () -> Math.round(medianMillis * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.services.context.RootContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the webhook endpoint, with callbacks sent the way CLEAR sends them, and of the node reading the pushed
+ * results.
+ */
+class ClearWebhookHandlerTest {
+
+    private static final String ACTIVE_KEY = "webhook-key";
+    private static final String PREVIOUS_KEY = "previous-webhook-key";
+    private static final int MAX_BODY_SIZE = 65536;
+
+    private final ClearWebhookStore store = new ClearWebhookStore();
+    private final ClearSecrets secrets = mock(ClearSecrets.class);
+    private final ClearWebhookHandler handler = new ClearWebhookHandler(store, secrets);
+    private final ClearHttpHandler httpHandler = new ClearHttpHandler();
+    private ClearClient client;
+
+    @BeforeEach
+    void setUp() {
+        when(secrets.get(any(), anyString()))
+            .thenReturn(newResultPromise(ClearSecrets.Keys.of(ACTIVE_KEY, Arrays.asList(ACTIVE_KEY, PREVIOUS_KEY))));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        httpHandler.close();
+    }
+
+    @Test
+    void storesSignedCallbacks() throws Exception {
+        byte[] body = results("session-1", "success");
+
+        assertEquals(204, send(body, sign(ACTIVE_KEY, body)).getStatus().getCode());
+
+        assertEquals("success", store.take("session-1").get("status").asString());
+    }
+
+    @Test
+    void acceptsCallbacksSignedWithAPreviousKey() throws Exception {
+        byte[] body = results("session-1", "success");
+
+        assertEquals(204, send(body, "sha256=" + sign(PREVIOUS_KEY, body)).getStatus().getCode());
+
+        assertNotNull(store.take("session-1"));
+    }
+
+    @Test
+    void rejectsUnsignedCallbacks() throws Exception {
+        assertEquals(401, send(results("session-1", "success"), null).getStatus().getCode());
+
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void rejectsCallbacksSignedWithAnotherKey() throws Exception {
+        byte[] body = results("session-1", "success");
+
+        assertEquals(401, send(body, sign("other-key", body)).getStatus().getCode());
+
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void rejectsTamperedCallbacks() throws Exception {
+        String signature = sign(ACTIVE_KEY, results("session-1", "failed"));
+
+        assertEquals(401, send(results("session-1", "success"), signature).getStatus().getCode());
+
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void rejectsOversizedCallbacks() throws Exception {
+        byte[] body = oversized();
+
+        assertEquals(413, send(body, sign(ACTIVE_KEY, body)).getStatus().getCode());
+
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void rejectsOversizedCallbacksWithoutContentLength() throws Exception {
+        byte[] body = oversized();
+        Request request = request(body, sign(ACTIVE_KEY, body));
+        request.getHeaders().remove("Content-Length");
+
+        Response response = handler.handle(new RootContext(), request).getOrThrowUninterruptibly();
+
+        assertEquals(413, response.getStatus().getCode());
+
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void replayedCallbacksAreHandedOutOnce() throws Exception {
+        byte[] body = results("session-1", "success");
+        String signature = sign(ACTIVE_KEY, body);
+
+        assertEquals(204, send(body, signature).getStatus().getCode());
+        assertEquals(204, send(body, signature).getStatus().getCode());
+
+        assertNotNull(store.take("session-1"));
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void rejectsCallbacksWithoutSessionId() throws Exception {
+        byte[] body = "{\"status\":\"success\"}".getBytes(UTF_8);
+
+        assertEquals(400, send(body, sign(ACTIVE_KEY, body)).getStatus().getCode());
+    }
+
+    @Test
+    void isDisabledWithoutSecret() throws Exception {
+        when(secrets.get(any(), anyString()))
+            .thenReturn(newExceptionPromise(new ClearServiceException("No CLEAR secret found")));
+        byte[] body = results("session-1", "success");
+
+        assertEquals(404, send(body, sign(ACTIVE_KEY, body)).getStatus().getCode());
+
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void nodeUsesPushedResults() throws Exception {
+        try (ClearStub stub = ClearStub.start()) {
+            ClearJourney journey = new ClearJourney();
+            ClearNode node = node(stub, true);
+            journey.start(node);
+            byte[] body = results(journey.sessionId(), "success");
+            send(body, sign(ACTIVE_KEY, body));
+            long requests = stub.requests();
+
+            Action action = journey.resume(node);
+
+            assertEquals(ClearNode.ClearOutcomeProvider.CONTINUE_OUTCOME_ID, action.outcome);
+            assertEquals(requests, stub.requests());
+            assertEquals("webhook", ((Map<?, ?>) journey.state("verificationResults")).get("source"));
+            assertNull(store.take(journey.sessionId()));
+        }
+    }
+
+    @Test
+    void nodeCallsClearWhenNoResultsWerePushed() throws Exception {
+        try (ClearStub stub = ClearStub.start()) {
+            ClearJourney journey = new ClearJourney();
+            ClearNode node = node(stub, true);
+            journey.start(node);
+            long requests = stub.requests();
+
+            Action action = journey.resume(node);
+
+            assertEquals(ClearNode.ClearOutcomeProvider.CONTINUE_OUTCOME_ID, action.outcome);
+            assertEquals(requests + 1, stub.requests());
+            assertNull(((Map<?, ?>) journey.state("verificationResults")).get("source"));
+        }
+    }
+
+    @Test
+    void nodeIgnoresPushedResultsWhenDisabled() throws Exception {
+        try (ClearStub stub = ClearStub.start()) {
+            ClearJourney journey = new ClearJourney();
+            ClearNode node = node(stub, false);
+            journey.start(node);
+            byte[] body = results(journey.sessionId(), "success");
+            send(body, sign(ACTIVE_KEY, body));
+            long requests = stub.requests();
+
+            journey.resume(node);
+
+            assertEquals(requests + 1, stub.requests());
+        }
+    }
+
+    /**
+     * A node whose client reads pushed results from the store the handler writes to.
+     */
+    private ClearNode node(ClearStub stub, boolean webhookResults) {
+        ClearMetrics metrics = ClearJourney.metrics();
+        client = new ClearClient(httpHandler, metrics, store);
+        ClearNode.Config config = spy(ClearJourney.config(stub.url()));
+        doReturn(webhookResults).when(config).webhookResultsToggle();
+        return ClearJourney.node(config, client, metrics);
+    }
+
+    private Response send(byte[] body, String signature) throws Exception {
+        return handler.handle(new RootContext(), request(body, signature)).getOrThrowUninterruptibly();
+    }
+
+    private static Request request(byte[] body, String signature) throws Exception {
+        Request request = new Request().setMethod("POST").setUri("https://am.example.com/am/clear/webhook");
+        request.getEntity().setBytes(body);
+        if (signature != null) {
+            request.getHeaders().put(ClearWebhookHandler.SIGNATURE_HEADER, signature);
+        }
+        return request;
+    }
+
+    private static String sign(String key, byte[] body) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getBytes(UTF_8), "HmacSHA256"));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : mac.doFinal(body)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] results(String id, String status) {
+        return ("{\"id\":\"" + id + "\",\"status\":\"" + status + "\",\"source\":\"webhook\"}").getBytes(UTF_8);
+    }
+
+    private static byte[] oversized() {
+        StringBuilder body = new StringBuilder("{\"id\":\"session-1\",\"status\":\"success\",\"padding\":\"");
+        while (body.length() <= MAX_BODY_SIZE) {
+            body.append("0123456789");
+        }
+        return body.append("\"}").toString().getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.clear;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.forgerock.json.JsonValue;
+import org.junit.jupiter.api.Test;
+
+class ClearWebhookStoreTest {
+
+    private static final int DEFAULT_SIZE = 10000;
+
+    private final ClearWebhookStore store = new ClearWebhookStore();
+
+    @Test
+    void handsOutResultsOnce() {
+        store.put("session-1", results("session-1"));
+
+        JsonValue taken = store.take("session-1");
+
+        assertNotNull(taken);
+        assertEquals("success", taken.get("status").asString());
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void returnsNothingForUnknownSessions() {
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void replacesAndClearsEarlierResultsOfASession() {
+        JsonValue first = results("session-1");
+        store.put("session-1", first);
+        store.put("session-1", results("session-1"));
+
+        assertEquals(0, first.size());
+        assertNotNull(store.take("session-1"));
+        assertNull(store.take("session-1"));
+    }
+
+    @Test
+    void evictsAndClearsTheOldestResultsWhenFull() {
+        JsonValue oldest = results("session-0");
+        store.put("session-0", oldest);
+        for (int i = 1; i <= DEFAULT_SIZE; i++) {
+            store.put("session-" + i, results("session-" + i));
+        }
+
+        assertEquals(0, oldest.size());
+        assertNull(store.take("session-0"));
+        assertNotNull(store.take("session-1"));
+        assertNotNull(store.take("session-" + DEFAULT_SIZE));
+    }
+
+    private static JsonValue results(String id) {
+        return json(object(field("id", id), field("status", "success")));
+    }
+}